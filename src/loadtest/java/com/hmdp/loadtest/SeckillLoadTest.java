@@ -0,0 +1,253 @@
+package com.hmdp.loadtest;
+
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.Voucher;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.SeckillKeys;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.AfterAllCallback;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.extension.ExtensionContext;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import redis.embedded.RedisServer;
+
+import javax.annotation.Resource;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.hmdp.utils.RedisConstants.LOGIN_USER_KEY;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 秒杀端到端压测：内嵌redis + H2，真实启动应用，通过http并发抢券。
+ * 运行：mvn -P loadtest test -Dloadtest.users=5000 -Dloadtest.stock=1000
+ * 参数：loadtest.users 用户数，loadtest.stock 库存，loadtest.concurrency 并发线程数，
+ * loadtest.requests-per-user 每个用户请求次数(大于1时顺便验证一人一单)
+ */
+@Slf4j
+@ExtendWith(SeckillLoadTest.StopRedis.class)
+@ActiveProfiles("loadtest")
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_CLASS)
+class SeckillLoadTest {
+    private static RedisServer redisServer;
+
+    @DynamicPropertySource
+    static void redisProperties(DynamicPropertyRegistry registry) throws IOException {
+        int port = freePort();
+        redisServer = new RedisServer(port);
+        redisServer.start();
+        registry.add("spring.redis.host", () -> "127.0.0.1");
+        registry.add("spring.redis.port", () -> port);
+    }
+
+    /**
+     * 先于SpringExtension注册，afterAll在应用上下文关闭之后才执行，关闭过程中redis还可用
+     */
+    static class StopRedis implements AfterAllCallback {
+        @Override
+        public void afterAll(ExtensionContext context) throws Exception {
+            if (redisServer != null) {
+                redisServer.stop();
+            }
+        }
+    }
+
+    @LocalServerPort
+    private int port;
+    @Resource
+    private IVoucherService voucherService;
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Test
+    void seckill() throws Exception {
+        int users = Integer.getInteger("loadtest.users", 5000);
+        int stock = Integer.getInteger("loadtest.stock", 1000);
+        int concurrency = Integer.getInteger("loadtest.concurrency", 200);
+        int requestsPerUser = Integer.getInteger("loadtest.requests-per-user", 2);
+        //1.准备秒杀券和登录用户
+        Long voucherId = addVoucher(stock);
+        login(users);
+        //2.打乱请求顺序，同一用户的多次请求不挨在一起
+        List<Long> requests = new ArrayList<>(users * requestsPerUser);
+        for (int r = 0; r < requestsPerUser; r++) {
+            for (long u = 1; u <= users; u++) {
+                requests.add(u);
+            }
+        }
+        Collections.shuffle(requests, new Random(42));
+        //3.并发请求
+        long[] latencies = new long[requests.size()];
+        AtomicInteger succeeded = new AtomicInteger();
+        AtomicInteger rejected = new AtomicInteger();
+        AtomicInteger errors = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(concurrency);
+        CountDownLatch latch = new CountDownLatch(requests.size());
+        long begin = System.nanoTime();
+        for (int i = 0; i < requests.size(); i++) {
+            int index = i;
+            Long userId = requests.get(i);
+            pool.execute(() -> {
+                long start = System.nanoTime();
+                try {
+                    String body = post("/voucher-order/seckill/" + voucherId, "lt-" + userId);
+                    if (body.contains("\"success\":true")) {
+                        succeeded.incrementAndGet();
+                    } else {
+                        rejected.incrementAndGet();
+                    }
+                } catch (Exception e) {
+                    errors.incrementAndGet();
+                } finally {
+                    latencies[index] = System.nanoTime() - start;
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+        long elapsed = System.nanoTime() - begin;
+        pool.shutdown();
+        //4.等异步下单落库
+        long orders = waitForOrders(voucherId, succeeded.get(), 60_000);
+        //5.统计
+        Arrays.sort(latencies);
+        int duplicates = voucherOrderService.query().select("user_id")
+                .eq("voucher_id", voucherId).groupBy("user_id").having("count(*) > 1").list().size();
+        SeckillVoucher seckillVoucher = seckillVoucherService.getById(voucherId);
+        long redisStock = redisStock(voucherId);
+        log.info("\n===== 秒杀压测 =====\n" +
+                        "用户 {} 库存 {} 并发 {} 请求 {}\n" +
+                        "耗时 {} ms 吞吐 {} req/s\n" +
+                        "延迟 p50 {} ms p99 {} ms p999 {} ms max {} ms\n" +
+                        "成功 {} 拒绝 {} 错误 {}\n" +
+                        "订单 {} 重复订单用户 {} redis剩余库存 {} mysql剩余库存 {}",
+                users, stock, concurrency, requests.size(),
+                elapsed / 1_000_000, String.format("%.1f", requests.size() * 1e9 / elapsed),
+                millis(percentile(latencies, 0.50)), millis(percentile(latencies, 0.99)),
+                millis(percentile(latencies, 0.999)), millis(latencies[latencies.length - 1]),
+                succeeded.get(), rejected.get(), errors.get(),
+                orders, duplicates, redisStock, seckillVoucher.getStock());
+        //6.不超卖、不重复、redis和mysql一致
+        assertEquals(0, errors.get(), "请求出错");
+        assertEquals(Math.min(stock, users), succeeded.get(), "成功数应等于可卖数量");
+        assertEquals(succeeded.get(), orders, "订单数应等于成功数");
+        assertEquals(0, duplicates, "存在一人多单");
+        assertEquals(stock - orders, (long) seckillVoucher.getStock(), "mysql库存不一致");
+        assertEquals(stock - succeeded.get(), redisStock, "redis库存不一致");
+        assertTrue(orders <= stock, "超卖");
+    }
+
+    private Long addVoucher(int stock) {
+        Voucher voucher = new Voucher();
+        voucher.setShopId(1L);
+        voucher.setTitle("压测券");
+        voucher.setPayValue(100L);
+        voucher.setActualValue(1000L);
+        voucher.setType(1);
+        voucher.setStatus(1);
+        voucher.setStock(stock);
+        voucher.setBeginTime(LocalDateTime.now().minusHours(1));
+        voucher.setEndTime(LocalDateTime.now().plusHours(1));
+        voucherService.addSeckillVoucher(voucher);
+        return voucher.getId();
+    }
+
+    /**
+     * 直接往redis写登录token，token为 lt-用户id
+     */
+    private void login(int users) {
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (long u = 1; u <= users; u++) {
+                Map<String, String> user = new HashMap<>(4);
+                user.put("id", String.valueOf(u));
+                user.put("nickName", "user_" + u);
+                user.put("icon", "");
+                conn.hMSet(LOGIN_USER_KEY + "lt-" + u, user);
+            }
+            return null;
+        });
+    }
+
+    private String post(String path, String token) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL("http://127.0.0.1:" + port + path).openConnection();
+        conn.setRequestMethod("POST");
+        conn.setRequestProperty("authorization", token);
+        conn.setConnectTimeout(5000);
+        conn.setReadTimeout(30000);
+        int status = conn.getResponseCode();
+        try (InputStream in = status < 400 ? conn.getInputStream() : conn.getErrorStream()) {
+            if (in == null) {
+                return "";
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[1024];
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                out.write(buf, 0, n);
+            }
+            return out.toString(StandardCharsets.UTF_8.name());
+        }
+    }
+
+    private long waitForOrders(Long voucherId, long expected, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        long orders;
+        while ((orders = voucherOrderService.query().eq("voucher_id", voucherId).count()) < expected
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(200);
+        }
+        return orders;
+    }
+
+    private long redisStock(Long voucherId) {
+        Object buckets = stringRedisTemplate.opsForHash().get(SeckillKeys.voucherKey(voucherId), "buckets");
+        int n = Integer.parseInt(String.valueOf(buckets));
+        long total = 0;
+        for (int b = 0; b < n; b++) {
+            String value = stringRedisTemplate.opsForValue().get(SeckillKeys.stockKey(voucherId, b));
+            total += value == null ? 0 : Long.parseLong(value);
+        }
+        return total;
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1)];
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.2f", nanos / 1e6);
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
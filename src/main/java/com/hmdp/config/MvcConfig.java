@@ -1,6 +1,8 @@
 package com.hmdp.config;
 import com.hmdp.utils.LoginInterceptor;
+import com.hmdp.utils.RateLimitInterceptor;
 import com.hmdp.utils.RefreshTokenIntercepter;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
@@ -12,6 +14,11 @@ import javax.annotation.Resource;
 public class MvcConfig implements WebMvcConfigurer {
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    /**
+     * 限流开关，压测吞吐时可以关掉
+     */
+    @Value("${hmdp.rate-limit.enabled:true}")
+    private boolean rateLimitEnabled;
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
 
@@ -28,5 +35,10 @@ public class MvcConfig implements WebMvcConfigurer {
                         "/voucher/**"
                 ).order(1);
 
+        //限流放在登录校验之后，能拿到用户；只处理标了@RateLimit的方法
+        if (rateLimitEnabled) {
+            registry.addInterceptor(new RateLimitInterceptor(stringRedisTemplate)).addPathPatterns("/**").order(2);
+        }
+
     }
 }
@@ -1,17 +1,30 @@
 package com.hmdp.config;
 
+import cn.hutool.core.util.StrUtil;
 import org.redisson.Redisson;
 import org.redisson.api.RedissonClient;
 import org.redisson.config.Config;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
 @Configuration
 public class ReddissonConfig {
+    /**
+     * 和spring.redis用同一个redis，换环境只需要改一处配置
+     */
+    @Value("${spring.redis.host:192.168.100.2}")
+    private String host;
+    @Value("${spring.redis.port:6379}")
+    private int port;
+    @Value("${spring.redis.password:}")
+    private String password;
+
     @Bean
     public RedissonClient redissonClient(){
         Config config = new Config();
-        config.useSingleServer().setAddress("redis://192.168.100.2:6379").setPassword("12");
+        config.useSingleServer().setAddress("redis://" + host + ":" + port)
+                .setPassword(StrUtil.isBlank(password) ? null : password);
         return Redisson.create(config);
     }
 }
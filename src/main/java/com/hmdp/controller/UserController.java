@@ -9,6 +9,8 @@ import com.hmdp.entity.User;
 import com.hmdp.entity.UserInfo;
 import com.hmdp.service.IUserInfoService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.IdBloomFilters;
+import com.hmdp.utils.RateLimit;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.web.bind.annotation.*;
@@ -32,10 +34,14 @@ public class UserController {
     @Resource
     private IUserInfoService userInfoService;
 
+    @Resource
+    private IdBloomFilters idBloomFilters;
+
     /**
      * 发送手机验证码
      */
     @PostMapping("code")
+    @RateLimit(key = "code", type = RateLimit.Type.IP, permitsPerSecond = 1, limit = 5, window = 60)
     public Result sendCode(@RequestParam("phone") String phone, HttpSession session) {
         //  发送短信验证码并保存验证码
         return userService.sendCode(phone,session);
@@ -85,6 +91,10 @@ public class UserController {
 
     @GetMapping("/{id}")
     public Result queryUserById(@PathVariable("id") Long userId){
+        // 布隆过滤器判断不存在，不查数据库
+        if (!idBloomFilters.mightContain(IdBloomFilters.USER, userId)) {
+            return Result.ok();
+        }
         // 查询详情
         User user = userService.getById(userId);
         if (user == null) {
@@ -4,10 +4,9 @@ package com.hmdp.controller;
 import com.hmdp.dto.Result;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
-import org.springframework.web.bind.annotation.PathVariable;
-import org.springframework.web.bind.annotation.PostMapping;
-import org.springframework.web.bind.annotation.RequestMapping;
-import org.springframework.web.bind.annotation.RestController;
+import com.hmdp.utils.RateLimit;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import javax.annotation.Resource;
 
@@ -22,7 +21,19 @@ public class VoucherOrderController {
     @Resource
     private IVoucherOrderService voucherOrderService;
     @PostMapping("seckill/{id}")
+    @RateLimit(key = "seckill", type = RateLimit.Type.ROUTE, permitsPerSecond = 2000, burst = 500)
+    @RateLimit(key = "seckill", type = RateLimit.Type.USER, permitsPerSecond = 1, burst = 3, limit = 5, window = 1)
     public Result seckillVoucher(@PathVariable("id") Long voucherId) throws InterruptedException {
         return voucherOrderService.seckillVoucher(voucherId);
     }
+
+    /**
+     * 长轮询异步下单结果，状态变为CREATED/FAILED或超时后返回
+     * @param orderId 秒杀接口返回的订单id
+     * @return 订单状态 status、reason
+     */
+    @GetMapping("status/{id}")
+    public DeferredResult<Result> pollOrderStatus(@PathVariable("id") Long orderId) {
+        return voucherOrderService.pollOrderStatus(orderId);
+    }
 }
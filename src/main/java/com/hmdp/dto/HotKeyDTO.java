@@ -0,0 +1,20 @@
+package com.hmdp.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class HotKeyDTO {
+    private String key;
+    /**
+     * 最近一个窗口内估算的每秒访问次数
+     */
+    private Double qps;
+    /**
+     * 是否超过阈值，被提升到本地缓存
+     */
+    private Boolean hot;
+}
@@ -3,6 +3,10 @@ package com.hmdp.service;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import java.util.List;
+import java.util.Map;
 
 /**
  * <p>
@@ -13,5 +17,27 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
 
     Result seckillVoucher(Long voucherId) throws InterruptedException;
 
-    void createVocherOrder(VoucherOrder voucherOrder);
+    /**
+     * 创建单个订单
+     * @return 失败原因，成功返回null
+     */
+    String createVocherOrder(VoucherOrder voucherOrder);
+
+    /**
+     * 一个事务内整批创建订单
+     * @return 没有创建成功的订单id及原因
+     */
+    Map<Long, String> createVoucherOrders(List<VoucherOrder> voucherOrders);
+
+    /**
+     * 取消未支付的订单，归还数据库库存
+     * @return 这次是否取消成功，订单已支付或已取消返回false
+     */
+    boolean cancelUnpaidOrder(Long orderId, Long voucherId);
+
+    Result queryDeadLetters(String start, Integer count);
+
+    Result replayDeadLetter(String id);
+
+    DeferredResult<Result> pollOrderStatus(Long orderId);
 }
@@ -15,6 +15,10 @@ import com.hmdp.service.IBlogService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.service.IFollowService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheInvalidator;
+import com.hmdp.utils.HotKeyDetector;
+import com.hmdp.utils.IdBloomFilters;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
@@ -22,15 +26,20 @@ import org.springframework.beans.BeanUtils;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.ZSetOperations;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.BLOG_LIKED_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_BLOG_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_BLOG_TTL;
 import static com.hmdp.utils.RedisConstants.FEED_KEY;
 
 /**
@@ -46,8 +55,20 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     private StringRedisTemplate stringRedisTemplate;
     @Resource
     private IFollowService followService;
+    @Resource
+    private IdBloomFilters idBloomFilters;
+    @Resource
+    private CacheClient cacheClient;
+    @Resource
+    private CacheInvalidator cacheInvalidator;
+    @Resource
+    private HotKeyDetector hotKeyDetector;
     @Override
     public Result queryBlogById(Long id) {
+        //布隆过滤器判断不存在，不用查数据库
+        if (!idBloomFilters.mightContain(IdBloomFilters.BLOG, id)) {
+            return Result.fail("笔记不存在");
+        }
         Blog blog = getById(id);
         if(blog == null){
             return Result.fail("笔记不存在");
@@ -67,6 +88,8 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         Long userId = user.getId();
         //2判断用户是否已经点赞
         String key = BLOG_LIKED_KEY + blog.getId();
+        //热门笔记每次浏览都要查点赞集合，不经过CacheClient，单独报给热点探测
+        hotKeyDetector.record(key);
         Double score = stringRedisTemplate.opsForZSet().score(key, userId.toString());
         blog.setIsLike(score != null);
     }
@@ -88,6 +111,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     }
 
     @Override
+    @Transactional
     public Result likeBlog(Long id) {
 
         //1获取用户
@@ -102,6 +126,8 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             //保存用户到redis 的set集合
             if(isSuccess){
                 stringRedisTemplate.opsForZSet().add(key,userId.toString(),System.currentTimeMillis());
+                //点赞数变了，提交后删掉笔记缓存
+                cacheInvalidator.invalidate(CACHE_BLOG_KEY + id);
             }
         }else{
             //4如果已经点赞
@@ -109,6 +135,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             boolean isSuccess = update().setSql("liked = liked - 1").eq("id", id).update();
             //把用户从redis的set里移除
             stringRedisTemplate.opsForZSet().remove(key,userId.toString());
+            cacheInvalidator.invalidate(CACHE_BLOG_KEY + id);
         }
         return Result.ok();
     }
@@ -117,6 +144,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     public Result queryBlogLikes(Long id) {
         // 1. 查询top5点赞用户
         String key = BLOG_LIKED_KEY + id;
+        hotKeyDetector.record(key);
         Set<String> top5 = stringRedisTemplate.opsForZSet().range(key, 0, 4);
         // 根据用户id查询用户
         if(top5 == null||top5.isEmpty()){
@@ -124,13 +152,8 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         }
         //2. 解析出用户id
         List<Long> ids = top5.stream().map(Long::valueOf).collect(Collectors.toList());
-        String idStr = StrUtil.join(",", ids);
-
-        List<UserDTO> userDTOS = userService.query()
-                .in("id",ids).last("ORDER BY FIELD(id," + idStr + ")").list()
-                .stream()
-                .map(user -> BeanUtil.copyProperties(user, UserDTO.class))
-                .collect(Collectors.toList());
+        //3. 批量查用户，按点赞顺序返回
+        List<UserDTO> userDTOS = userService.queryUserDTOs(ids);
         // 返回
         return Result.ok(userDTOS);
     }
@@ -143,6 +166,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         if(!isSuccess){
             return Result.fail("新增笔记失败");
         }else {
+            idBloomFilters.add(IdBloomFilters.BLOG, blog.getId());
             //查询作者的所有粉丝
             List<Follow> follows = followService.query().eq("follow_user_id", user.getId()).list();
             for (Follow follow : follows) {
@@ -186,11 +210,19 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         }
         //3.根据id查blog，封装并返回。
         ScrollResult r = new ScrollResult();
-        String idStr = StrUtil.join(",", ids);
-        List<Blog> blogs = query()
-                .in("id",ids).last("ORDER BY FIELD(id," + idStr + ")").list();
+        List<Blog> blogs = cacheClient.queryBatch(CACHE_BLOG_KEY, ids, Blog.class,
+                missIds -> listByIds(missIds).stream().collect(Collectors.toMap(Blog::getId, blog -> blog)),
+                CACHE_BLOG_TTL, TimeUnit.MINUTES);
+        //作者也批量查
+        List<Long> userIds = blogs.stream().map(Blog::getUserId).distinct().collect(Collectors.toList());
+        Map<Long, UserDTO> users = userService.queryUserDTOs(userIds).stream()
+                .collect(Collectors.toMap(UserDTO::getId, user -> user));
         for (Blog blog : blogs) {
-            queryBlogUser(blog);
+            UserDTO user = users.get(blog.getUserId());
+            if (user != null) {
+                blog.setName(user.getNickName());
+                blog.setIcon(user.getIcon());
+            }
             //查询blog是否被点赞了
             isBlogLiked(blog);
         }
@@ -1,16 +1,18 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.json.JSONUtil;
 import com.hmdp.entity.ShopType;
 import com.hmdp.mapper.ShopTypeMapper;
 import com.hmdp.service.IShopTypeService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
-import org.springframework.data.redis.core.StringRedisTemplate;
+import com.hmdp.utils.CacheClient;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.Resource;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_TYPE_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_TYPE_TTL;
 
 /**
  * <p>
@@ -20,24 +22,12 @@ import java.util.Map;
 @Service
 public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> implements IShopTypeService {
     @Resource
-    private StringRedisTemplate stringRedisTemplate;
-    @Resource
-    private IShopTypeService typeService;
+    private CacheClient cacheClient;
 
     @Override
     public List<ShopType> queryList() {
-        //1. 查询redis
-        String listStr = stringRedisTemplate.opsForValue().get("list");
-        if(listStr != null){
-            //2.如果有数据，返回
-            List<ShopType> list = JSONUtil.toList(listStr,ShopType.class);
-            return list;
-        }
-        //3.没有数据，查询数据库
-        List<ShopType> list = typeService.query().orderByAsc("sort").list();
-        //把数据写入redis
-        stringRedisTemplate.opsForValue().set("list",JSONUtil.toJsonStr(list));
-        //返回
-        return list;
+        //查缓存，没有就查数据库写回；原来存在裸key "list" 下，和别的缓存分不开
+        return cacheClient.queryList(CACHE_SHOP_TYPE_KEY, ShopType.class,
+                () -> query().orderByAsc("sort").list(), CACHE_SHOP_TYPE_TTL, TimeUnit.MINUTES);
     }
 }
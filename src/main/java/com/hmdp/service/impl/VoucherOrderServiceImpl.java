@@ -1,34 +1,51 @@
 package com.hmdp.service.impl;
 
 import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.util.StrUtil;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.OrderStatusTracker;
+import com.hmdp.utils.OrderTimeoutScheduler;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.RedisScriptBatcher;
+import com.hmdp.utils.SeckillKeys;
+import com.hmdp.utils.SeckillRollback;
+import com.hmdp.utils.SoldOutRegistry;
+import com.hmdp.utils.StreamArchiver;
+import com.hmdp.utils.StreamPartitionAssigner;
+import com.hmdp.utils.StreamPendingRecovery;
 import com.hmdp.utils.UserHolder;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.extern.slf4j.Slf4j;
-import org.redisson.api.RLock;
-import org.redisson.api.RedissonClient;
-import org.springframework.aop.framework.AopContext;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.kafka.KafkaProperties;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
 import org.springframework.data.redis.connection.stream.*;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.io.File;
 import java.time.Duration;
-import java.util.Collections;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
 import java.util.concurrent.*;
 
+import static com.hmdp.utils.RedisConstants.*;
+
 /**
  * <p>
  *  服务实现类
@@ -42,92 +59,595 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Resource
     private ISeckillVoucherService seckillVoucherService;
     @Resource
-    private RedissonClient redissonClient;
-    @Resource
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SoldOutRegistry soldOutRegistry;
+    @Resource
+    private OrderStatusTracker orderStatusTracker;
 
     private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
+    private static final DefaultRedisScript<Long> MOVE_STOCK_SCRIPT;
+    /**
+     * 秒杀脚本返回码对应的提示：1库存不足 2重复下单 3未开始 4已结束；5是攒批排队满了或等待超时，脚本没有执行
+     */
+    private static final String[] SECKILL_FAIL_MESSAGES = {null, "库存不足", "不能重复下单", "秒杀尚未开始", "秒杀已经结束", "系统繁忙，请稍后重试"};
+    private static final long SECKILL_BUSY = 5;
     //放在静态代码块中，类一加载就会一同加载
     static {
         SECKILL_SCRIPT = new DefaultRedisScript<>();
         SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
         SECKILL_SCRIPT.setResultType(Long.class);
+        MOVE_STOCK_SCRIPT = new DefaultRedisScript<>();
+        MOVE_STOCK_SCRIPT.setLocation(new ClassPathResource("seckill_move.lua"));
+        MOVE_STOCK_SCRIPT.setResultType(Long.class);
     }
-    private ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
+    /**
+     * 每次XREADGROUP最多拉取的订单数
+     */
+    @Value("${hmdp.seckill.order.batch-size:50}")
+    private int batchSize;
+    /**
+     * 攒批的最长等待时间，超时后不满一批也直接处理
+     */
+    @Value("${hmdp.seckill.order.max-linger-ms:20}")
+    private long maxLingerMs;
+    /**
+     * 本节点的消费线程数，每个线程是一个独立命名的消费者
+     */
+    @Value("${hmdp.seckill.order.consumers:4}")
+    private int consumers;
+    /**
+     * 消息空闲超过这么久还没确认，就被恢复线程接管
+     */
+    @Value("${hmdp.seckill.order.recovery.min-idle-ms:5000}")
+    private long recoveryMinIdleMs;
+    @Value("${hmdp.seckill.order.recovery.backoff-base-ms:1000}")
+    private long recoveryBackoffBaseMs;
+    @Value("${hmdp.seckill.order.recovery.backoff-max-ms:60000}")
+    private long recoveryBackoffMaxMs;
+    /**
+     * 最大投递次数，超过后转入死信流
+     */
+    @Value("${hmdp.seckill.order.recovery.max-attempts:6}")
+    private int recoveryMaxAttempts;
+    @Value("${hmdp.seckill.order.recovery.interval-ms:1000}")
+    private long recoveryIntervalMs;
+    /**
+     * 已确认的消息归档到这个目录后从流里裁掉
+     */
+    @Value("${hmdp.seckill.order.archive.dir:archive/stream.orders}")
+    private String archiveDir;
+    @Value("${hmdp.seckill.order.archive.batch-size:500}")
+    private int archiveBatchSize;
+    @Value("${hmdp.seckill.order.archive.interval-ms:30000}")
+    private long archiveIntervalMs;
+    @Resource
+    private MeterRegistry meterRegistry;
+    /**
+     * 下单后这么久未支付自动取消
+     */
+    @Value("${hmdp.seckill.order.timeout.pay-timeout-ms:900000}")
+    private long payTimeoutMs;
+    @Value("${hmdp.seckill.order.timeout.horizon-ms:30000}")
+    private long timeoutHorizonMs;
+    @Value("${hmdp.seckill.order.timeout.lease-ms:60000}")
+    private long timeoutLeaseMs;
+    @Value("${hmdp.seckill.order.timeout.batch-size:500}")
+    private int timeoutBatchSize;
+    @Value("${hmdp.seckill.order.timeout.poll-interval-ms:1000}")
+    private long timeoutPollIntervalMs;
+    @Resource
+    private SeckillRollback seckillRollback;
+    private OrderTimeoutScheduler timeoutScheduler;
+    /**
+     * 秒杀脚本攒批：窗口(微秒)内到达的调用合成一次流水线EVALSHA，0表示关闭，每个请求单独执行
+     */
+    @Value("${hmdp.seckill.admission.window-us:200}")
+    private long admissionWindowMicros;
+    @Value("${hmdp.seckill.admission.max-batch:64}")
+    private int admissionMaxBatch;
+    @Value("${hmdp.seckill.admission.dispatchers:2}")
+    private int admissionDispatchers;
+    /**
+     * 排队等待攒批的请求上限，满了直接返回繁忙
+     */
+    @Value("${hmdp.seckill.admission.queue-capacity:4096}")
+    private int admissionQueueCapacity;
+    /**
+     * 请求在攒批队列里最多等这么久，超时还没发出去就放弃，返回繁忙
+     */
+    @Value("${hmdp.seckill.admission.timeout-ms:500}")
+    private long admissionTimeoutMs;
+    private RedisScriptBatcher admissionBatcher;
+    private StreamPartitionAssigner partitionAssigner;
+    private ExecutorService SECKILL_ORDER_EXECUTOR;
+    private ScheduledExecutorService ORDER_RECOVERY_EXECUTOR;
+    /**
+     * 已经建过消费者组的分区流
+     */
+    private final Set<String> knownStreams = ConcurrentHashMap.newKeySet();
+    /**
+     * 每张券的桶数和时间窗口，读一次缓存下来；券重新写入时收到广播删掉，广播丢了靠ttl过期
+     */
+    private final Map<Long, SeckillMeta> seckillMetas = new ConcurrentHashMap<>();
+    @Value("${hmdp.seckill.meta-ttl-ms:60000}")
+    private long seckillMetaTtlMs;
+    /**
+     * redis集群下一条XREADGROUP只能读同一个slot的流
+     */
+    private boolean clusterMode;
     @PostConstruct
     private void init(){
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
+        RedisConnectionFactory connectionFactory = stringRedisTemplate.getConnectionFactory();
+        clusterMode = connectionFactory instanceof LettuceConnectionFactory
+                && ((LettuceConnectionFactory) connectionFactory).isClusterAware();
+        soldOutRegistry.onVoucherChanged(seckillMetas::remove);
+        if (admissionWindowMicros > 0) {
+            admissionBatcher = new RedisScriptBatcher(stringRedisTemplate, SECKILL_SCRIPT,
+                    admissionWindowMicros, admissionMaxBatch, admissionDispatchers, admissionQueueCapacity);
+            admissionBatcher.start();
+        }
+        partitionAssigner = new StreamPartitionAssigner(stringRedisTemplate, STREAM_ORDERS_NODES_KEY, this::activeStreams);
+        partitionAssigner.start();
+        SECKILL_ORDER_EXECUTOR = Executors.newFixedThreadPool(consumers);
+        for (int i = 0; i < consumers; i++) {
+            SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler(i));
+        }
+        //恢复线程：接管超时消息、退避重试、转死信
+        StreamPendingRecovery recovery = new StreamPendingRecovery(
+                stringRedisTemplate, STREAM_ORDERS_GROUP, partitionAssigner.getNodeId() + "-recovery",
+                STREAM_ORDERS_DLQ_KEY, recoveryMinIdleMs, recoveryBackoffBaseMs, recoveryBackoffMaxMs,
+                recoveryMaxAttempts, this::handleRecord)
+                //进死信的订单标记失败，客户端不用一直等
+                .onDeadLetter(value -> orderStatusTracker.failed(
+                        Long.valueOf(value.get("id").toString()), Long.valueOf(value.get("userId").toString()),
+                        "下单失败：" + value.get("error")));
+        //归档线程：已确认的消息写文件后裁剪，顺便统计流长度和积压
+        StreamArchiver archiver = new StreamArchiver(
+                stringRedisTemplate, STREAM_ORDERS_GROUP, STREAM_ORDERS_ARCHIVED_KEY,
+                new File(archiveDir), archiveBatchSize, meterRegistry);
+        ORDER_RECOVERY_EXECUTOR = Executors.newScheduledThreadPool(2);
+        ORDER_RECOVERY_EXECUTOR.scheduleWithFixedDelay(
+                () -> recovery.recover(partitionAssigner.owned()),
+                recoveryIntervalMs, recoveryIntervalMs, TimeUnit.MILLISECONDS);
+        ORDER_RECOVERY_EXECUTOR.scheduleWithFixedDelay(
+                () -> archiver.archive(partitionAssigner.owned()),
+                archiveIntervalMs, archiveIntervalMs, TimeUnit.MILLISECONDS);
+        //超时未支付自动取消
+        timeoutScheduler = new OrderTimeoutScheduler(stringRedisTemplate, timeoutHorizonMs, timeoutLeaseMs,
+                timeoutBatchSize, timeoutPollIntervalMs, this::handleTimeout);
+        timeoutScheduler.start();
+    }
+
+    @PreDestroy
+    private void destroy(){
+        if (admissionBatcher != null) {
+            admissionBatcher.stop();
+        }
+        timeoutScheduler.stop();
+        ORDER_RECOVERY_EXECUTOR.shutdownNow();
+        SECKILL_ORDER_EXECUTOR.shutdownNow();
+        partitionAssigner.stop();
+    }
+
+    private void createGroupIfAbsent(String streamKey) {
+        try {
+            //xgroup create stream.orders:{券id:桶号} g1 0 mkstream
+            stringRedisTemplate.opsForStream().createGroup(streamKey, ReadOffset.from("0"), STREAM_ORDERS_GROUP);
+        } catch (Exception e) {
+            //BUSYGROUP，组已经存在
+            log.debug("消费者组已存在 {}", streamKey);
+        }
+    }
+
+    /**
+     * 所有登记过的秒杀券的分区流，新出现的流顺便建好消费者组
+     */
+    private List<String> activeStreams() {
+        Set<String> members = stringRedisTemplate.opsForSet().members(STREAM_ORDERS_VOUCHERS_KEY);
+        if (members == null || members.isEmpty()) {
+            return Collections.emptyList();
+        }
+        //按券id排序，各节点算出来的顺序一致
+        TreeSet<Long> voucherIds = new TreeSet<>();
+        for (String member : members) {
+            voucherIds.add(Long.valueOf(member));
+        }
+        List<String> streams = new ArrayList<>();
+        for (Long voucherId : voucherIds) {
+            //每个库存桶一个分区
+            SeckillMeta meta = seckillMeta(voucherId);
+            if (meta == null) {
+                continue;
+            }
+            for (int i = 0; i < meta.buckets; i++) {
+                String streamKey = SeckillKeys.streamKey(voucherId, i);
+                if (knownStreams.add(streamKey)) {
+                    createGroupIfAbsent(streamKey);
+                }
+                streams.add(streamKey);
+            }
+        }
+        return streams;
     }
 
+    /**
+     * 券的桶数和时间窗口，不是秒杀券返回null
+     */
+    private SeckillMeta seckillMeta(Long voucherId) {
+        SeckillMeta meta = seckillMetas.get(voucherId);
+        long now = System.currentTimeMillis();
+        if (meta != null && now - meta.loadedAt < seckillMetaTtlMs) {
+            return meta;
+        }
+        Map<Object, Object> info = stringRedisTemplate.opsForHash().entries(SeckillKeys.voucherKey(voucherId));
+        if (info.isEmpty()) {
+            return null;
+        }
+        meta = new SeckillMeta(Integer.parseInt(info.get("buckets").toString()),
+                StrUtil.toString(info.getOrDefault("begin", "")), StrUtil.toString(info.getOrDefault("end", "")), now);
+        seckillMetas.put(voucherId, meta);
+        return meta;
+    }
+
+    private static class SeckillMeta {
+        final int buckets;
+        /**
+         * 开始结束时间(epoch秒)，没有限制为空串
+         */
+        final String begin;
+        final String end;
+        /**
+         * 从redis读出来的时间(毫秒)
+         */
+        final long loadedAt;
+
+        SeckillMeta(int buckets, String begin, String end, long loadedAt) {
+            this.buckets = buckets;
+            this.begin = begin;
+            this.end = end;
+            this.loadedAt = loadedAt;
+        }
+
+        /**
+         * 本地时钟和redis时钟可能有偏差，超出窗口这么多秒以上才在本地拒绝
+         */
+        private static final long CLOCK_SKEW_SECONDS = 5;
+
+        /**
+         * @return 0在窗口内或在边界附近，3未开始，4已结束，和脚本返回码一致
+         */
+        int checkWindow(long nowSecond) {
+            if (!begin.isEmpty() && nowSecond < Long.parseLong(begin) - CLOCK_SKEW_SECONDS) {
+                return 3;
+            }
+            if (!end.isEmpty() && nowSecond > Long.parseLong(end) + CLOCK_SKEW_SECONDS) {
+                return 4;
+            }
+            return 0;
+        }
+    }
 
         private class VoucherOrderHandler implements Runnable{
-        String queueName = "stream.orders";
+        private final int index;
+        private final Consumer consumer;
+
+        VoucherOrderHandler(int index) {
+            this.index = index;
+            //消费者名字带上节点id，多个实例不会撞名
+            this.consumer = Consumer.from(STREAM_ORDERS_GROUP, partitionAssigner.getNodeId() + "-c" + index);
+        }
+
         @Override
         public void run() {
-            while(true){
+            while(!Thread.currentThread().isInterrupted()){
+                //0.当前线程负责的分区，节点增减时会变化
+                List<String> streams = partitionAssigner.assigned(index, consumers);
+                if(streams.isEmpty()){
+                    //分区比线程少，本线程暂时空闲
+                    if(!sleep(1000)){
+                        return;
+                    }
+                    continue;
+                }
                 //1. 获取队列中的订单信息
                 try {
-                    //1.拿消息队列的订单信息 xreadgroup group g1 c1 count 1 block 2000 streams streams.order >
-                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
-                            //ReadOffset.lastConsumed()这个就是大于号
-                            StreamOffset.create(queueName, ReadOffset.lastConsumed())
-                    );
+                    //1.批量拿消息队列的订单信息 xreadgroup group g1 node-c0 count N block 2000 streams stream.orders:{1}:0 stream.orders:{1}:4 > >
+                    List<MapRecord<String, Object, Object>> list = readBatch(streams);
                     //2.判断消息是否成功
-                    if(list == null||list.isEmpty()){
+                    if(list.isEmpty()){
                         //2.1获取失败，没有消息，继续下一次
                         continue;
                     }
-                    //3. 解析消息
-                    MapRecord<String, Object, Object> entries = list.get(0);
-                    Map<Object, Object> value = entries.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
-                    //3.有消息，可以下单
-                    handleVoucherOrder(voucherOrder);
-                    //4.ack确认 sack stream.orders g1
-                    stringRedisTemplate.opsForStream().acknowledge(queueName,"g1",entries.getId());
+                    //3.有消息，整批下单并确认
+                    try {
+                        handleBatch(list);
+                    } catch (Exception e) {
+                        log.error("整批处理订单异常，改为逐条处理", e);
+                        handleOneByOne(list);
+                    }
                 } catch (Exception e) {
-                    handlePendingList();
+                    log.error("处理订单异常", e);
+                    if(!sleep(1000)){
+                        return;
+                    }
                 }
             }
         }
 
-            private void handlePendingList() {
-                while(true){
-                    //1. 获取队列中的订单信息
+            /**
+             * 拉取一批消息：先阻塞等第一条，再在maxLingerMs内尽量攒满batchSize条
+             */
+            private List<MapRecord<String, Object, Object>> readBatch(List<String> streams) {
+                if(clusterMode){
+                    //集群下按券(hash tag)分组，每组一个slot
+                    List<List<String>> slots = SeckillKeys.groupByHashTag(streams);
+                    if(slots.size() > 1){
+                        return readEachSlot(slots);
+                    }
+                }
+                List<MapRecord<String, Object, Object>> batch = new ArrayList<>(batchSize);
+                List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                        consumer,
+                        StreamReadOptions.empty().count(batchSize).block(Duration.ofSeconds(2)),
+                        //ReadOffset.lastConsumed()这个就是大于号
+                        offsets(streams, ReadOffset.lastConsumed())
+                );
+                if(list == null || list.isEmpty()){
+                    return batch;
+                }
+                batch.addAll(list);
+                long deadline = System.currentTimeMillis() + maxLingerMs;
+                while(batch.size() < batchSize){
+                    long remaining = deadline - System.currentTimeMillis();
+                    //block(0)会永久阻塞，剩余时间不足1ms直接结束
+                    if(remaining < 1){
+                        break;
+                    }
+                    list = stringRedisTemplate.opsForStream().read(
+                            consumer,
+                            StreamReadOptions.empty().count(batchSize - batch.size()).block(Duration.ofMillis(remaining)),
+                            offsets(streams, ReadOffset.lastConsumed())
+                    );
+                    if(list == null || list.isEmpty()){
+                        break;
+                    }
+                    batch.addAll(list);
+                }
+                return batch;
+            }
+
+            /**
+             * 分属多个slot时不能一起阻塞读，逐组非阻塞读一遍，都没有消息就稍等再来
+             */
+            private List<MapRecord<String, Object, Object>> readEachSlot(List<List<String>> slots) {
+                List<MapRecord<String, Object, Object>> batch = new ArrayList<>(batchSize);
+                for (List<String> slot : slots) {
+                    if(batch.size() >= batchSize){
+                        break;
+                    }
+                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                            consumer,
+                            StreamReadOptions.empty().count(batchSize - batch.size()),
+                            offsets(slot, ReadOffset.lastConsumed())
+                    );
+                    if(list != null){
+                        batch.addAll(list);
+                    }
+                }
+                if(batch.isEmpty()){
+                    sleep(50);
+                }
+                return batch;
+            }
+
+            private void handleBatch(List<MapRecord<String, Object, Object>> records) {
+                //1.解析消息，按分区归类消息id
+                List<VoucherOrder> voucherOrders = new ArrayList<>(records.size());
+                Map<String, List<RecordId>> ids = new HashMap<>();
+                for (MapRecord<String, Object, Object> entries : records) {
+                    voucherOrders.add(BeanUtil.fillBeanWithMap(entries.getValue(), new VoucherOrder(), true));
+                    ids.computeIfAbsent(entries.getStream(), k -> new ArrayList<>()).add(entries.getId());
+                }
+                //2.一个事务内整批下单
+                Map<Long, String> failures = proxy.createVoucherOrders(voucherOrders);
+                //3.每个分区一次ack xack stream.orders:i g1 id1 id2 ...
+                for (Map.Entry<String, List<RecordId>> entry : ids.entrySet()) {
+                    stringRedisTemplate.opsForStream().acknowledge(
+                            entry.getKey(), STREAM_ORDERS_GROUP, entry.getValue().toArray(new RecordId[0]));
+                }
+                //4.事务已提交，一个流水线更新整批订单状态，成功的单登记支付超时
+                Map<Long, Long> userIds = new LinkedHashMap<>(voucherOrders.size() * 2);
+                List<VoucherOrder> created = new ArrayList<>(voucherOrders.size());
+                for (VoucherOrder voucherOrder : voucherOrders) {
+                    userIds.put(voucherOrder.getId(), voucherOrder.getUserId());
+                    if (!failures.containsKey(voucherOrder.getId())) {
+                        created.add(voucherOrder);
+                    }
+                }
+                updateStatus(userIds, failures);
+                scheduleTimeouts(created);
+            }
+
+            /**
+             * 整批失败时逐条重试一次，把毒消息隔离出来；仍失败的留在pending-list交给恢复线程
+             */
+            private void handleOneByOne(List<MapRecord<String, Object, Object>> records) {
+                for (MapRecord<String, Object, Object> entries : records) {
                     try {
-                        //1.拿pendinglist的订单信息 xreadgroup group g1 c1 count 1 block 2000 streams streams.order >
-                        List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                                Consumer.from("g1", "c1"),
-                                StreamReadOptions.empty().count(1),
-                                //ReadOffset.lastConsumed()这个就是大于号
-                                StreamOffset.create(queueName, ReadOffset.from("0"))
-                        );
-                        //2.判断消息是否成功
-                        if(list == null||list.isEmpty()){
-                            //2.1获取失败，没有消息，继续下一次
-                            break;
-                        }
-                        //3. 解析消息
-                        MapRecord<String, Object, Object> entries = list.get(0);
-                        Map<Object, Object> value = entries.getValue();
-                        VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
-                        //3.有消息，可以下单
-                        handleVoucherOrder(voucherOrder);
-                        //4.ack确认 sack stream.orders g1
-                        stringRedisTemplate.opsForStream().acknowledge(queueName,"g1",entries.getId());
+                        handleRecord(entries);
+                        stringRedisTemplate.opsForStream().acknowledge(entries.getStream(), STREAM_ORDERS_GROUP, entries.getId());
                     } catch (Exception e) {
-                        log.info("处理pending-list异常",e);
-                        try {
-                            Thread.sleep(20);
-                        } catch (InterruptedException ex) {
-                            throw new RuntimeException(ex);
-                        }
+                        log.error("处理订单消息失败，留待重试 {} {}", entries.getStream(), entries.getId(), e);
                     }
                 }
             }
         }
+
+    private void handleRecord(MapRecord<String, Object, Object> entries) {
+        //1. 解析消息
+        Map<Object, Object> value = entries.getValue();
+        VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
+        //2.有消息，可以下单
+        String reason = handleVoucherOrder(voucherOrder);
+        //3.更新订单状态
+        updateStatus(voucherOrder, reason);
+        if (reason == null) {
+            scheduleTimeouts(Collections.singletonList(voucherOrder));
+        }
+    }
+
+    /**
+     * 登记支付超时任务，任务内容 券id:用户id:订单id
+     */
+    private void scheduleTimeouts(List<VoucherOrder> voucherOrders) {
+        List<String> members = new ArrayList<>(voucherOrders.size());
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            members.add(voucherOrder.getVoucherId() + ":" + voucherOrder.getUserId() + ":" + voucherOrder.getId());
+        }
+        try {
+            timeoutScheduler.schedule(members, System.currentTimeMillis() + payTimeoutMs);
+        } catch (Exception e) {
+            //登记失败的订单不会自动取消，由对账发现
+            log.error("登记支付超时失败 {}", members, e);
+        }
+    }
+
+    /**
+     * 支付超时：先在数据库里取消并归还库存，提交后再归还redis里的名额
+     * @return 处理完成可以删除任务
+     */
+    private boolean handleTimeout(String member) {
+        String[] parts = member.split(":");
+        Long voucherId = Long.valueOf(parts[0]);
+        Long userId = Long.valueOf(parts[1]);
+        Long orderId = Long.valueOf(parts[2]);
+        //1.取消订单，已支付的单不动
+        if (!proxy.cancelUnpaidOrder(orderId, voucherId)) {
+            //1.1.没取消成功：订单已支付，或者上次取消后redis没归还成功正在重试
+            VoucherOrder order = getById(orderId);
+            if (order == null || order.getStatus() != 4) {
+                return true;
+            }
+        }
+        //2.归还redis名额：脚本里确认购买记录还指向这个订单才移除并加库存，
+        //用户已经重新买到时记录的是新订单，不会误删；重试也不会多加
+        SeckillMeta meta = seckillMeta(voucherId);
+        if (meta != null) {
+            seckillRollback.giveBack(voucherId, meta.buckets, userId, orderId);
+        }
+        orderStatusTracker.failed(orderId, userId, "超时未支付，订单已取消");
+        log.info("订单{}超时未支付，已取消", orderId);
+        return true;
+    }
+
+    @Override
+    @Transactional
+    public boolean cancelUnpaidOrder(Long orderId, Long voucherId) {
+        //1.只取消未支付的单，active置空后唯一索引不再约束，用户可以重新购买
+        boolean success = update()
+                .setSql("status = 4, active = NULL")
+                .eq("id", orderId).eq("status", 1)
+                .update();
+        if (!success) {
+            return false;
+        }
+        //2.归还数据库库存
+        seckillVoucherService.update()
+                .setSql("stock = stock + 1")
+                .eq("voucher_id", voucherId)
+                .update();
+        return true;
+    }
+
+    private void updateStatus(VoucherOrder voucherOrder, String reason) {
+        try {
+            if (reason == null) {
+                orderStatusTracker.created(voucherOrder.getId(), voucherOrder.getUserId());
+            } else {
+                orderStatusTracker.failed(voucherOrder.getId(), voucherOrder.getUserId(), reason);
+            }
+        } catch (Exception e) {
+            //订单已经处理完，状态写失败不影响确认
+            log.warn("更新订单状态失败 {}", voucherOrder.getId(), e);
+        }
+    }
+
+    private void updateStatus(Map<Long, Long> userIds, Map<Long, String> failures) {
+        try {
+            orderStatusTracker.completed(userIds, failures);
+        } catch (Exception e) {
+            log.warn("更新订单状态失败 {}", userIds.keySet(), e);
+        }
+    }
+
+    @Override
+    public DeferredResult<Result> pollOrderStatus(Long orderId) {
+        return orderStatusTracker.poll(orderId, UserHolder.getUser().getId());
+    }
+
+    @Override
+    public Result queryDeadLetters(String start, Integer count) {
+        Range<String> range = StrUtil.isBlank(start) ? Range.unbounded() : Range.rightUnbounded(Range.Bound.inclusive(start));
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream()
+                .range(STREAM_ORDERS_DLQ_KEY, range, RedisZSetCommands.Limit.limit().count(count));
+        if (records == null || records.isEmpty()) {
+            return Result.ok(Collections.emptyList());
+        }
+        List<Map<Object, Object>> list = new ArrayList<>(records.size());
+        for (MapRecord<String, Object, Object> record : records) {
+            Map<Object, Object> value = new LinkedHashMap<>();
+            value.put("dlqId", record.getId().getValue());
+            value.putAll(record.getValue());
+            list.add(value);
+        }
+        return Result.ok(list, stringRedisTemplate.opsForStream().size(STREAM_ORDERS_DLQ_KEY));
+    }
+
+    @Override
+    public Result replayDeadLetter(String id) {
+        //1.查死信
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream()
+                .range(STREAM_ORDERS_DLQ_KEY, Range.closed(id, id));
+        if (records == null || records.isEmpty()) {
+            return Result.fail("死信不存在");
+        }
+        Map<Object, Object> value = records.get(0).getValue();
+        Object stream = value.get("stream");
+        if (stream == null) {
+            return Result.fail("死信缺少来源分区");
+        }
+        //2.原样写回来源分区，只带订单字段
+        Map<String, String> order = new LinkedHashMap<>();
+        order.put("userId", String.valueOf(value.get("userId")));
+        order.put("voucherId", String.valueOf(value.get("voucherId")));
+        order.put("id", String.valueOf(value.get("id")));
+        RecordId recordId = stringRedisTemplate.opsForStream().add(stream.toString(), order);
+        orderStatusTracker.requeued(Long.valueOf(order.get("id")), Long.valueOf(order.get("userId")));
+        //3.删除死信
+        stringRedisTemplate.opsForStream().delete(STREAM_ORDERS_DLQ_KEY, id);
+        log.info("死信{}已重放到{} {}", id, stream, recordId);
+        return Result.ok(recordId == null ? null : recordId.getValue());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static StreamOffset<String>[] offsets(List<String> streams, ReadOffset readOffset) {
+        StreamOffset<String>[] offsets = new StreamOffset[streams.size()];
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = StreamOffset.create(streams.get(i), readOffset);
+        }
+        return offsets;
+    }
+
+    private static boolean sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
 /*    private class VoucherOrderHandler implements Runnable{
         @Override
         public void run() {
@@ -144,33 +664,116 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     }*/
 
 
+    /**
+     * 事务代理对象，消费线程里拿不到AopContext，这里直接注入
+     */
+    @Lazy
+    @Resource
     private IVoucherOrderService proxy;
 
     @Override
     public Result seckillVoucher(Long voucherId){
+        // 0.本地已知售罄，直接拒绝，不生成id也不访问redis
+        if(soldOutRegistry.isSoldOut(voucherId)){
+            return Result.fail("库存不足");
+        }
+        SeckillMeta meta = seckillMeta(voucherId);
+        if(meta == null){
+            return Result.fail("秒杀券不存在");
+        }
+        // 0.1.按本地时钟粗筛时间窗口，明显不在窗口内的不生成id也不执行脚本；边界附近以脚本里的redis时间为准
+        int window = meta.checkWindow(System.currentTimeMillis() / 1000);
+        if(window != 0){
+            return Result.fail(SECKILL_FAIL_MESSAGES[window]);
+        }
         Long userId = UserHolder.getUser().getId();
+        // 0.2.订单id要和资格判断在脚本里一起写进订单流，只能先生成；号段模式下是本地分配，不访问redis
         long orderId = redisIdWorker.nextId("order");
-        // 1.执行lua脚本
-        Long result = stringRedisTemplate.execute(
-                SECKILL_SCRIPT,
-                Collections.emptyList(),
-                voucherId.toString(), userId.toString(),String.valueOf(orderId)
-        );
+        // 1.执行lua脚本，只操作主桶这一个slot：库存、购买记录、订单流都带{券id:主桶}
+        int home = SeckillKeys.homeBucket(userId, meta.buckets);
+        List<String> keys = Arrays.asList(SeckillKeys.stockKey(voucherId, home),
+                SeckillKeys.orderKey(voucherId, home), SeckillKeys.streamKey(voucherId, home));
+        String[] args = {voucherId.toString(), userId.toString(), String.valueOf(orderId),
+                meta.begin, meta.end, String.valueOf(home), "0"};
+        Long result = executeSeckill(keys, args);
+        // 1.1.主桶空了，依次从其它桶挪库存过来再试，挪来的库存由脚本加到主桶
+        for (int i = 1; result == 1L && i < meta.buckets; i++) {
+            long moved = moveStock(voucherId, (home + i) % meta.buckets);
+            if (moved > 0) {
+                //挪出来的库存必须入账，不走攒批，避免排队超时被放弃后丢掉
+                args[6] = String.valueOf(moved);
+                result = stringRedisTemplate.execute(SECKILL_SCRIPT, keys, (Object[]) args);
+            }
+        }
         //2.判断是否是0
         int r = result.intValue();
         //2.1  没有
         if(r != 0){
-            return Result.fail(r == 1?"库存不足":"不能重复下单");
+            if(r == 1 && totalStock(voucherId, meta.buckets) <= 0){
+                //各桶加起来也没有库存了，登记售罄并通知其它节点
+                soldOutRegistry.markSoldOut(voucherId);
+            }
+            return Result.fail(SECKILL_FAIL_MESSAGES[r]);
         }
-        //获取代理对象
-        proxy = (IVoucherOrderService)AopContext.currentProxy();
-        // 3. 返回订单id；
+        // 3. 记录订单已排队，客户端凭订单id长轮询结果
+        orderStatusTracker.queued(orderId, userId);
+        // 4. 返回订单id；
         return Result.ok(orderId);
     }
 
+    /**
+     * 各桶库存之和。集群下各桶在不同slot，没法在一个脚本里原子地加起来，
+     * 正在挪的库存可能哪个桶都不在，所以售罄登记还要带ttl
+     */
+    private long totalStock(Long voucherId, int buckets) {
+        List<String> keys = new ArrayList<>(buckets);
+        for (int i = 0; i < buckets; i++) {
+            keys.add(SeckillKeys.stockKey(voucherId, i));
+        }
+        long total = 0;
+        List<String> stocks = stringRedisTemplate.opsForValue().multiGet(keys);
+        if (stocks != null) {
+            for (String stock : stocks) {
+                total += stock == null ? 0 : Long.parseLong(stock);
+            }
+        }
+        return total;
+    }
+
+    /**
+     * 从另一个桶挪出一半库存，返回挪出的数量，0表示那个桶也空了
+     */
+    private long moveStock(Long voucherId, int bucket) {
+        Long moved = stringRedisTemplate.execute(MOVE_STOCK_SCRIPT,
+                Collections.singletonList(SeckillKeys.stockKey(voucherId, bucket)));
+        return moved == null ? 0 : moved;
+    }
+
+    /**
+     * 执行秒杀脚本，开启攒批时和同一时刻的其它请求合成一次流水线；排队满了或等待超时返回繁忙
+     */
+    private Long executeSeckill(List<String> keys, String... args) {
+        if (admissionBatcher == null) {
+            return stringRedisTemplate.execute(SECKILL_SCRIPT, keys, (Object[]) args);
+        }
+        try {
+            return admissionBatcher.execute(keys, admissionTimeoutMs, args);
+        } catch (RejectedExecutionException | TimeoutException e) {
+            log.debug("秒杀请求排队{}，返回繁忙", e instanceof TimeoutException ? "超时" : "已满");
+            return SECKILL_BUSY;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("秒杀请求被中断", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof RuntimeException ? (RuntimeException) cause : new IllegalStateException(cause);
+        }
+    }
+
     /*@Override
     public Result seckillVoucher(Long voucherId){
         Long userId = UserHolder.getUser().getId();
+        // 0.2.订单id要和资格判断在脚本里一起写进订单流，只能先生成；号段模式下是本地分配，不访问redis
         long orderId = redisIdWorker.nextId("order");
         // 1.执行lua脚本
         Long result = stringRedisTemplate.execute(
@@ -242,50 +845,104 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 
     }*/
 
-    private void handleVoucherOrder(VoucherOrder voucherOrder) {
-        //SimpleRedisLock lock = new SimpleRedisLock("order:" + userId,stringRedisTemplate);
-        Long userId = voucherOrder.getUserId();
-        RLock lock = redissonClient.getLock("lock:order:" + userId);
-        //失败了不等待
-        boolean isLock = lock.tryLock();
-        //判断是否获取锁成功
-        if(!isLock){
-            //获取锁失败，返回错误或重试
-            log.error("不允许重复下单");
-            return;
-        }
-        try {
-            //拿到事务代理对象，防止事务失效
-            proxy.createVocherOrder(voucherOrder);
-        } catch (IllegalStateException e) {
-            throw new RuntimeException(e);
-        } finally {
-            //释放锁
-            lock.unlock();
-        }
+    private String handleVoucherOrder(VoucherOrder voucherOrder) {
+        //一人一单由(user_id, voucher_id)唯一索引保证，不再需要用户锁
+        //拿到事务代理对象，防止事务失效
+        return proxy.createVocherOrder(voucherOrder);
+    }
+
+    @Override
+    @Transactional
+    public String createVocherOrder(VoucherOrder voucherOrder) {
+        return createVoucherOrders(Collections.singletonList(voucherOrder)).get(voucherOrder.getId());
     }
 
     @Override
     @Transactional
-    public void createVocherOrder(VoucherOrder voucherOrder) {
-        //6.一人一单
-        //查询订单
-        Long userId = voucherOrder.getUserId();
-        int count = query().eq("user_id", userId).eq("voucher_id", voucherOrder.getVoucherId()).count();
-        if(count > 0){
-            //判断
-            log.error("用户已经购买一次");
-            return;
-        }
-        //5.扣减库存
+    public Map<Long, String> createVoucherOrders(List<VoucherOrder> voucherOrders) {
+        Map<Long, String> failures = new HashMap<>();
+        //1.批内去重，同一用户同一张券只保留第一单
+        Map<String, VoucherOrder> unique = new LinkedHashMap<>(voucherOrders.size() * 2);
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            VoucherOrder first = unique.putIfAbsent(voucherOrder.getUserId() + ":" + voucherOrder.getVoucherId(), voucherOrder);
+            //同一条消息重复出现不算重复下单
+            if (first != null && !first.getId().equals(voucherOrder.getId())) {
+                failures.put(voucherOrder.getId(), "用户已经购买一次");
+            }
+        }
+        //2.按券分组，每张券：扣库存 -> INSERT IGNORE -> 归还被忽略的单占用的库存
+        Map<Long, List<VoucherOrder>> byVoucher = new LinkedHashMap<>();
+        for (VoucherOrder voucherOrder : unique.values()) {
+            byVoucher.computeIfAbsent(voucherOrder.getVoucherId(), k -> new ArrayList<>()).add(voucherOrder);
+        }
+        for (Map.Entry<Long, List<VoucherOrder>> entry : byVoucher.entrySet()) {
+            Long voucherId = entry.getKey();
+            //2.1.扣减库存
+            List<VoucherOrder> orders = deductStock(voucherId, entry.getValue(), failures);
+            if (orders.isEmpty()) {
+                continue;
+            }
+            //2.2.多行插入，唯一索引冲突的行被忽略
+            int inserted = getBaseMapper().insertIgnoreBatch(orders);
+            if (inserted == orders.size()) {
+                continue;
+            }
+            //2.3.有单被忽略，把它们占用的库存还回去
+            seckillVoucherService.update()
+                    .setSql("stock = stock + " + (orders.size() - inserted))
+                    .eq("voucher_id", voucherId)
+                    .update();
+            //2.4.按主键查哪些单已经在库里：id在库里说明是重复投递，算成功；否则是用户已经有别的订单
+            Set<Long> saved = new HashSet<>();
+            for (VoucherOrder exist : query().select("id").in("id", orderIds(orders)).list()) {
+                saved.add(exist.getId());
+            }
+            for (VoucherOrder voucherOrder : orders) {
+                if (!saved.contains(voucherOrder.getId())) {
+                    log.error("用户已经购买一次");
+                    failures.put(voucherOrder.getId(), "用户已经购买一次");
+                }
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * 扣减一张券的库存，先整批 stock = stock - k，扣不动再逐单扣到没有为止
+     * @return 扣到库存的订单
+     */
+    private List<VoucherOrder> deductStock(Long voucherId, List<VoucherOrder> orders, Map<Long, String> failures) {
+        int k = orders.size();
         boolean success = seckillVoucherService.update()
-                .setSql("stock = stock - 1")
-                .eq("voucher_id", voucherOrder.getVoucherId()).gt("stock",0)
+                .setSql("stock = stock - " + k)
+                .eq("voucher_id", voucherId).ge("stock", k)
                 .update();
-        if(!success){
-            log.error("库存不足");
-            return ;
+        if (success) {
+            return orders;
+        }
+        List<VoucherOrder> deducted = new ArrayList<>(k);
+        boolean hasStock = true;
+        for (VoucherOrder voucherOrder : orders) {
+            //库存扣完后，剩下的单都不用再试
+            hasStock = hasStock && seckillVoucherService.update()
+                    .setSql("stock = stock - 1")
+                    .eq("voucher_id", voucherId).gt("stock", 0)
+                    .update();
+            if (!hasStock) {
+                log.error("库存不足");
+                failures.put(voucherOrder.getId(), "库存不足");
+                continue;
+            }
+            deducted.add(voucherOrder);
+        }
+        return deducted;
+    }
+
+    private static List<Long> orderIds(List<VoucherOrder> orders) {
+        List<Long> ids = new ArrayList<>(orders.size());
+        for (VoucherOrder voucherOrder : orders) {
+            ids.add(voucherOrder.getId());
         }
-        save(voucherOrder);
+        return ids;
     }
 }
@@ -7,14 +7,22 @@ import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.SeckillKeys;
+import com.hmdp.utils.SoldOutRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
-import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static com.hmdp.utils.RedisConstants.STREAM_ORDERS_VOUCHERS_KEY;
 
 /**
  * <p>
@@ -28,6 +36,13 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     private ISeckillVoucherService seckillVoucherService;
     @Resource
     StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SoldOutRegistry soldOutRegistry;
+    /**
+     * 每张秒杀券的库存桶数
+     */
+    @Value("${hmdp.seckill.stock-buckets:4}")
+    private int stockBuckets;
 
     @Override
     public Result queryVoucherOfShop(Long shopId) {
@@ -49,7 +64,43 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
-        //保存秒杀库存到redis中
-        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucher.getId(),voucher.getStock().toString());
+        //保存秒杀库存到redis中，库存拆到多个桶里分散热点
+        Long voucherId = voucher.getId();
+        int stock = voucher.getStock();
+        //每个桶带自己的{券id:桶号}，集群下在不同的slot，不能用一条MSET，放在一个流水线里逐个SET
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (int b = 0; b < stockBuckets; b++) {
+                conn.set(SeckillKeys.stockKey(voucherId, b), String.valueOf(SeckillKeys.bucketStock(stock, stockBuckets, b)));
+            }
+            return null;
+        });
+        //秒杀信息hash：初始库存、桶数、开始结束时间，秒杀脚本据此校验时间窗口
+        Map<String, String> info = new HashMap<>(8);
+        info.put("stock", String.valueOf(stock));
+        info.put("buckets", String.valueOf(stockBuckets));
+        if (voucher.getBeginTime() != null) {
+            info.put("begin", String.valueOf(SeckillKeys.epochSecond(voucher.getBeginTime())));
+        }
+        if (voucher.getEndTime() != null) {
+            info.put("end", String.valueOf(SeckillKeys.epochSecond(voucher.getEndTime())));
+        }
+        String voucherKey = SeckillKeys.voucherKey(voucherId);
+        stringRedisTemplate.opsForHash().putAll(voucherKey, info);
+        //重新写入时去掉了的时间限制，旧值也要删掉
+        List<Object> removed = new ArrayList<>(2);
+        if (!info.containsKey("begin")) {
+            removed.add("begin");
+        }
+        if (!info.containsKey("end")) {
+            removed.add("end");
+        }
+        if (!removed.isEmpty()) {
+            stringRedisTemplate.opsForHash().delete(voucherKey, removed.toArray());
+        }
+        //登记订单流，消费者据此发现这张券的分区流
+        stringRedisTemplate.opsForSet().add(STREAM_ORDERS_VOUCHERS_KEY, voucherId.toString());
+        //各节点丢掉缓存的桶数、时间窗口和售罄登记
+        soldOutRegistry.voucherChanged(voucherId);
     }
 }
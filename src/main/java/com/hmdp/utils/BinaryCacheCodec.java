@@ -0,0 +1,320 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.Blog;
+import com.hmdp.entity.Shop;
+import org.springframework.stereotype.Component;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 紧凑二进制格式，每个类型手写读写，不走反射。
+ * 每个值以类型标签开头；类型加字段时注册一个新标签，旧标签的读取保留，
+ * redis里的旧值照样能读，过期后换成新标签。
+ */
+@Component
+public class BinaryCacheCodec implements CacheCodec {
+    public static final byte FORMAT = 2;
+    private static final byte NULL = 0;
+    private static final byte LOGICAL = 0x7E;
+    private static final byte LIST = 0x7F;
+
+    private final Map<Class<?>, Type<?>> byClass = new HashMap<>();
+    private final Type<?>[] byTag = new Type<?>[128];
+
+    public BinaryCacheCodec() {
+        register(1, Shop.class, (out, shop) -> {
+            writeLong(out, shop.getId());
+            writeString(out, shop.getName());
+            writeLong(out, shop.getTypeId());
+            writeString(out, shop.getImages());
+            writeString(out, shop.getArea());
+            writeString(out, shop.getAddress());
+            writeDouble(out, shop.getX());
+            writeDouble(out, shop.getY());
+            writeLong(out, shop.getAvgPrice());
+            writeInt(out, shop.getSold());
+            writeInt(out, shop.getComments());
+            writeInt(out, shop.getScore());
+            writeString(out, shop.getOpenHours());
+            writeTime(out, shop.getCreateTime());
+            writeTime(out, shop.getUpdateTime());
+        }, in -> {
+            Shop shop = new Shop();
+            shop.setId(readLong(in));
+            shop.setName(readString(in));
+            shop.setTypeId(readLong(in));
+            shop.setImages(readString(in));
+            shop.setArea(readString(in));
+            shop.setAddress(readString(in));
+            shop.setX(readDouble(in));
+            shop.setY(readDouble(in));
+            shop.setAvgPrice(readLong(in));
+            shop.setSold(readInt(in));
+            shop.setComments(readInt(in));
+            shop.setScore(readInt(in));
+            shop.setOpenHours(readString(in));
+            shop.setCreateTime(readTime(in));
+            shop.setUpdateTime(readTime(in));
+            return shop;
+        });
+        //name、icon、isLike是查询时按当前用户填的，不缓存；店铺的distance同理
+        register(2, Blog.class, (out, blog) -> {
+            writeLong(out, blog.getId());
+            writeLong(out, blog.getShopId());
+            writeLong(out, blog.getUserId());
+            writeString(out, blog.getTitle());
+            writeString(out, blog.getImages());
+            writeString(out, blog.getContent());
+            writeInt(out, blog.getLiked());
+            writeInt(out, blog.getComments());
+            writeTime(out, blog.getCreateTime());
+            writeTime(out, blog.getUpdateTime());
+        }, in -> {
+            Blog blog = new Blog();
+            blog.setId(readLong(in));
+            blog.setShopId(readLong(in));
+            blog.setUserId(readLong(in));
+            blog.setTitle(readString(in));
+            blog.setImages(readString(in));
+            blog.setContent(readString(in));
+            blog.setLiked(readInt(in));
+            blog.setComments(readInt(in));
+            blog.setCreateTime(readTime(in));
+            blog.setUpdateTime(readTime(in));
+            return blog;
+        });
+        register(3, UserDTO.class, (out, user) -> {
+            writeLong(out, user.getId());
+            writeString(out, user.getNickName());
+            writeString(out, user.getIcon());
+        }, in -> {
+            UserDTO user = new UserDTO();
+            user.setId(readLong(in));
+            user.setNickName(readString(in));
+            user.setIcon(readString(in));
+            return user;
+        });
+    }
+
+    private <T> void register(int tag, Class<T> type, Writer<T> writer, Reader<T> reader) {
+        Type<T> t = new Type<>((byte) tag, writer, reader);
+        byClass.put(type, t);
+        byTag[tag] = t;
+    }
+
+    @Override
+    public String name() {
+        return "binary";
+    }
+
+    @Override
+    public byte format() {
+        return FORMAT;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            if (value instanceof RedisData) {
+                RedisData redisData = (RedisData) value;
+                out.writeByte(LOGICAL);
+                writeTime(out, redisData.getExpireTime());
+                writeValue(out, redisData.getData());
+            } else if (value instanceof List) {
+                List<?> list = (List<?>) value;
+                out.writeByte(LIST);
+                out.writeInt(list.size());
+                for (Object element : list) {
+                    writeValue(out, element);
+                }
+            } else {
+                writeValue(out, value);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, int offset, int length, Class<T> type) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, offset, length))) {
+            return type.cast(readValue(in));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public <T> List<T> decodeList(byte[] bytes, int offset, int length, Class<T> type) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, offset, length))) {
+            if (in.readByte() != LIST) {
+                throw new IllegalStateException("不是列表");
+            }
+            int size = in.readInt();
+            List<T> list = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                list.add(type.cast(readValue(in)));
+            }
+            return list;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public RedisData decodeLogical(byte[] bytes, int offset, int length, Class<?> type) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, offset, length))) {
+            if (in.readByte() != LOGICAL) {
+                throw new IllegalStateException("不是逻辑过期的值");
+            }
+            RedisData redisData = new RedisData();
+            redisData.setExpireTime(readTime(in));
+            redisData.setData(type.cast(readValue(in)));
+            return redisData;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+            return;
+        }
+        Type<Object> type = (Type<Object>) byClass.get(value.getClass());
+        if (type == null) {
+            throw new IllegalArgumentException("二进制缓存不支持的类型 " + value.getClass().getName());
+        }
+        out.writeByte(type.tag);
+        type.writer.write(out, value);
+    }
+
+    private Object readValue(DataInputStream in) throws IOException {
+        byte tag = in.readByte();
+        if (tag == NULL) {
+            return null;
+        }
+        Type<?> type = tag > 0 ? byTag[tag] : null;
+        if (type == null) {
+            throw new IllegalStateException("未知的类型标签 " + tag);
+        }
+        return type.reader.read(in);
+    }
+
+    @Override
+    public boolean supports(Object value) {
+        if (value instanceof RedisData) {
+            return supports(((RedisData) value).getData());
+        }
+        if (value instanceof List) {
+            for (Object element : (List<?>) value) {
+                if (!supports(element)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return value == null || byClass.containsKey(value.getClass());
+    }
+
+    //可空字段先写一个字节表示有没有值
+
+    private static void writeLong(DataOutputStream out, Long value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeLong(value);
+        }
+    }
+
+    private static Long readLong(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readLong() : null;
+    }
+
+    private static void writeInt(DataOutputStream out, Integer value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeInt(value);
+        }
+    }
+
+    private static Integer readInt(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readInt() : null;
+    }
+
+    private static void writeDouble(DataOutputStream out, Double value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeDouble(value);
+        }
+    }
+
+    private static Double readDouble(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readDouble() : null;
+    }
+
+    /**
+     * writeUTF最长64K，笔记正文可能更长，自己写长度
+     */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeTime(DataOutputStream out, LocalDateTime value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeLong(value.toEpochSecond(ZoneOffset.UTC));
+            out.writeInt(value.getNano());
+        }
+    }
+
+    private static LocalDateTime readTime(DataInputStream in) throws IOException {
+        return in.readBoolean() ? LocalDateTime.ofEpochSecond(in.readLong(), in.readInt(), ZoneOffset.UTC) : null;
+    }
+
+    private interface Writer<T> {
+        void write(DataOutputStream out, T value) throws IOException;
+    }
+
+    private interface Reader<T> {
+        T read(DataInputStream in) throws IOException;
+    }
+
+    private static class Type<T> {
+        private final byte tag;
+        private final Writer<T> writer;
+        private final Reader<T> reader;
+
+        Type(byte tag, Writer<T> writer, Reader<T> reader) {
+            this.tag = tag;
+            this.writer = writer;
+            this.reader = reader;
+        }
+    }
+}
@@ -1,21 +1,27 @@
 package com.hmdp.utils;
 
-import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
-import com.hmdp.entity.Shop;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
-import org.yaml.snakeyaml.events.Event;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 
 import static com.hmdp.utils.RedisConstants.*;
 
@@ -26,99 +32,552 @@ import static com.hmdp.utils.RedisConstants.*;
 public class CacheClient {
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisTemplate<String, byte[]> cacheRedisTemplate;
+    @Resource
+    private LocalCache localCache;
+    @Resource
+    private CacheCodecs cacheCodecs;
+    @Resource
+    private HotKeyDetector hotKeyDetector;
+    @Resource
+    private CacheMetrics cacheMetrics;
+    /**
+     * 空值缓存，防穿透
+     */
+    private static final byte[] NULL_VALUE = new byte[0];
+    /**
+     * 过期时间随机浮动的比例，0.1表示在 ttl*0.9 ~ ttl*1.1 之间，避免同一批写入的key同时过期
+     */
+    @Value("${hmdp.cache.ttl-jitter:0.1}")
+    private double ttlJitter;
+    /**
+     * XFetch提前刷新的系数，越大越早刷新，0为关闭
+     */
+    @Value("${hmdp.cache.xfetch-beta:1.0}")
+    private double xfetchBeta;
 
     public void set(String key, Object value, Long time, TimeUnit unit){
-        stringRedisTemplate.opsForValue().set(key,JSONUtil.toJsonStr(value),time,unit);
+        cacheRedisTemplate.opsForValue().set(key, cacheCodecs.encode(value), jitter(unit.toMillis(time)), TimeUnit.MILLISECONDS);
     }
     public void setWithLogicExpire(String key, Object value, Long time, TimeUnit unit){
         RedisData redisData = new RedisData();
         redisData.setData(value);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
-        stringRedisTemplate.opsForValue().set(key,JSONUtil.toJsonStr(redisData));
+        redisData.setExpireTime(LocalDateTime.now().plusNanos(TimeUnit.MILLISECONDS.toNanos(jitter(unit.toMillis(time)))));
+        cacheRedisTemplate.opsForValue().set(key, cacheCodecs.encode(redisData));
+        //逻辑过期的key不会自己消失，写入新值后让各节点的本地副本失效
+        localCache.invalidate(key);
     }
 
     public <R,ID> R queryWithPassThrough(
             String keyPrefix, ID id, Class<R> type, Function<ID,R> dbFallback, Long time, TimeUnit unit) {
-        String key = keyPrefix + id;
+        CacheMetrics.Meters meters = cacheMetrics.of(keyPrefix);
+        long begin = System.nanoTime();
+        try {
+            return passThrough(meters, keyPrefix + id, id, type, dbFallback, time, unit);
+        } finally {
+            meters.get.record(System.nanoTime() - begin, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private <R,ID> R passThrough(CacheMetrics.Meters meters, String key, ID id, Class<R> type,
+                                 Function<ID,R> dbFallback, Long time, TimeUnit unit) {
+        hotKeyDetector.record(key);
 
+        //0.先查本地缓存，命中不用访问redis
+        byte[] cached = localCache.get(key);
+        if (cached != null) {
+            if (cached.length == 0) {
+                meters.nullHit.increment();
+                return null;
+            }
+            meters.localHit.increment();
+            long expireAt = refreshDue(cached);
+            if (expireAt != 0) {
+                refreshEarly(meters, key, expireAt, () -> loadAndWrite(meters, key, id, dbFallback, time, unit));
+            }
+            return cacheCodecs.decode(cached, type);
+        }
+        long generation = localCache.generation();
         //1.从redis中查询缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
+        cached = cacheRedisTemplate.opsForValue().get(key);
         //2.判断是否存在
-        if(StrUtil.isNotBlank(json)){
-            //3.存在，返回
-            return JSONUtil.toBean(json, type);
-        }
-        //判断是否是空值
-        if (json != null) {
-            //是空字符
+        if (cached != null && cached.length > 0) {
+            //3.存在，返回；解不出来(比如类型改了)当作没有，重新查库覆盖
+            R r = decodeQuietly(meters, key, cached, type);
+            if (r != null) {
+                meters.hit.increment();
+                localCache.put(key, cached, generation);
+                long expireAt = refreshDue(cached);
+                if (expireAt != 0) {
+                    refreshEarly(meters, key, expireAt, () -> loadAndWrite(meters, key, id, dbFallback, time, unit));
+                }
+                return r;
+            }
+        } else if (cached != null) {
+            //是空值
+            meters.nullHit.increment();
+            localCache.put(key, cached, generation);
             return null;
         }
-        //4.不存在，查询数据库
+        //4.不存在，查询数据库，写入redis
+        meters.miss.increment();
+        byte[] bytes = loadAndWrite(meters, key, id, dbFallback, time, unit);
+        localCache.put(key, bytes, generation);
+        //5.返回
+        return bytes.length == 0 ? null : cacheCodecs.decode(bytes, type);
+    }
+
+    /**
+     * 整个列表存成一个key，语义和queryWithPassThrough一样，用于店铺类型这种很少变的小列表
+     */
+    public <R> List<R> queryList(String key, Class<R> type, Supplier<List<R>> dbFallback, Long time, TimeUnit unit) {
+        CacheMetrics.Meters meters = cacheMetrics.of(key);
+        long begin = System.nanoTime();
+        try {
+            hotKeyDetector.record(key);
+            //1.本地缓存，再查redis
+            byte[] cached = localCache.get(key);
+            boolean local = cached != null;
+            long generation = localCache.generation();
+            if (!local) {
+                cached = cacheRedisTemplate.opsForValue().get(key);
+            }
+            //2.命中直接返回，空值表示数据库里没有
+            if (cached != null && cached.length == 0) {
+                meters.nullHit.increment();
+                if (!local) {
+                    localCache.put(key, cached, generation);
+                }
+                return Collections.emptyList();
+            }
+            if (cached != null) {
+                List<R> list = local ? cacheCodecs.decodeList(cached, type) : decodeListQuietly(meters, key, cached, type);
+                if (list != null) {
+                    (local ? meters.localHit : meters.hit).increment();
+                    if (!local) {
+                        localCache.put(key, cached, generation);
+                    }
+                    return list;
+                }
+            }
+            //3.没有，查库写回
+            meters.miss.increment();
+            byte[] bytes = loadAndWrite(meters, key, null, id -> {
+                List<R> list = dbFallback.get();
+                return list == null || list.isEmpty() ? null : list;
+            }, time, unit);
+            localCache.put(key, bytes, generation);
+            return bytes.length == 0 ? Collections.emptyList() : cacheCodecs.decodeList(bytes, type);
+        } finally {
+            meters.get.record(System.nanoTime() - begin, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * 查库并写入redis，数据不存在时写空值。值里带上过期时间和这次查库的耗时，给XFetch用
+     */
+    private <R,ID> byte[] loadAndWrite(CacheMetrics.Meters meters, String key, ID id, Function<ID,R> dbFallback,
+                                       Long time, TimeUnit unit) {
+        long begin = System.nanoTime();
         R r = dbFallback.apply(id);
-        //5.不存在，返回错误
-        //将空值写入redis
-        if(r == null){
-            stringRedisTemplate.opsForValue().set(key,"",CACHE_NULL_TTL,TimeUnit.MINUTES);
+        long elapsed = System.nanoTime() - begin;
+        meters.load.record(elapsed, TimeUnit.NANOSECONDS);
+        int rebuildMillis = (int) TimeUnit.NANOSECONDS.toMillis(elapsed);
+        if (r == null) {
+            cacheRedisTemplate.opsForValue().set(key, NULL_VALUE,
+                    jitter(TimeUnit.MINUTES.toMillis(CACHE_NULL_TTL)), TimeUnit.MILLISECONDS);
+            return NULL_VALUE;
+        }
+        long ttl = jitter(unit.toMillis(time));
+        byte[] bytes = cacheCodecs.encode(r, System.currentTimeMillis() + ttl, rebuildMillis);
+        cacheRedisTemplate.opsForValue().set(key, bytes, ttl, TimeUnit.MILLISECONDS);
+        return bytes;
+    }
+
+    /**
+     * XFetch：离过期越近、重建越慢，越可能提前刷新。
+     * now - rebuildMillis * beta * ln(rand) >= expireAt 时在后台刷新，当前请求照常返回旧值。
+     * 热点key会在过期前被某个请求刷新掉，不会真的过期；冷key很少被读到，照常过期。
+     * @return 要刷新时返回值的过期时间，不用刷新返回0
+     */
+    private long refreshDue(byte[] cached) {
+        long expireAt = CacheCodecs.expireAt(cached);
+        if (xfetchBeta <= 0 || expireAt <= 0) {
+            return 0;
+        }
+        int rebuildMillis = Math.max(1, CacheCodecs.rebuildMillis(cached));
+        double gap = -rebuildMillis * xfetchBeta * Math.log(1 - ThreadLocalRandom.current().nextDouble());
+        return System.currentTimeMillis() + gap < expireAt ? 0 : expireAt;
+    }
+
+    /**
+     * refreshDue判定要刷新之后才调用，刷新的lambda只在这时创建，命中路径上不分配对象
+     * @param expireAt 读到的值的过期时间
+     */
+    private void refreshEarly(CacheMetrics.Meters meters, String key, long expireAt, Runnable refresh) {
+        //拿到锁后redis里的值已经换过(过期时间变了)，说明别人刷新过了
+        rebuildOnce(meters, key,
+                current -> current == null || CacheCodecs.expireAt(current) == expireAt,
+                () -> {
+                    refresh.run();
+                    //各节点本地缓存里还是旧值，清掉
+                    localCache.invalidate(key);
+                });
+    }
+
+    /**
+     * ttl上下随机浮动ttlJitter
+     */
+    private long jitter(long ttlMillis) {
+        if (ttlJitter <= 0) {
+            return ttlMillis;
+        }
+        double factor = 1 + ttlJitter * (2 * ThreadLocalRandom.current().nextDouble() - 1);
+        return Math.max(1, (long) (ttlMillis * factor));
+    }
+
+    /**
+     * 批量查询，语义和queryWithPassThrough一样(不存在的id缓存空值)：
+     * 本地缓存 -> 一次MGET -> 没命中的用一条IN查询 -> 流水线回写。
+     * 返回结果按ids的顺序，不存在的id跳过。
+     * @param dbBatchFallback 按一批id查数据库，返回 id -> 实体
+     */
+    public <R,ID> List<R> queryBatch(
+            String keyPrefix, List<ID> ids, Class<R> type, Function<List<ID>, Map<ID,R>> dbBatchFallback,
+            Long time, TimeUnit unit) {
+        if (ids == null || ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        CacheMetrics.Meters meters = cacheMetrics.of(keyPrefix);
+        long begin = System.nanoTime();
+        try {
+            return batch(meters, keyPrefix, ids, type, dbBatchFallback, time, unit);
+        } finally {
+            meters.batch.record(System.nanoTime() - begin, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private <R,ID> List<R> batch(
+            CacheMetrics.Meters meters, String keyPrefix, List<ID> ids, Class<R> type,
+            Function<List<ID>, Map<ID,R>> dbBatchFallback, Long time, TimeUnit unit) {
+        Map<ID, R> found = new HashMap<>(ids.size() * 2);
+        Set<ID> nulls = new HashSet<>();
+        //1.本地缓存
+        List<ID> remoteIds = new ArrayList<>(ids.size());
+        for (ID id : ids) {
+            String key = keyPrefix + id;
+            hotKeyDetector.record(key);
+            byte[] cached = localCache.get(key);
+            if (cached == null) {
+                remoteIds.add(id);
+            } else if (cached.length == 0) {
+                meters.nullHit.increment();
+                nulls.add(id);
+            } else {
+                meters.localHit.increment();
+                found.put(id, cacheCodecs.decode(cached, type));
+                long expireAt = refreshDue(cached);
+                if (expireAt != 0) {
+                    refreshEarly(meters, key, expireAt,
+                            () -> loadAndWrite(meters, key, id, single(dbBatchFallback), time, unit));
+                }
+            }
+        }
+        //2.一次MGET
+        List<ID> missIds = new ArrayList<>();
+        if (!remoteIds.isEmpty()) {
+            long generation = localCache.generation();
+            List<String> keys = new ArrayList<>(remoteIds.size());
+            for (ID id : remoteIds) {
+                keys.add(keyPrefix + id);
+            }
+            List<byte[]> values = cacheRedisTemplate.opsForValue().multiGet(keys);
+            for (int i = 0; i < remoteIds.size(); i++) {
+                ID id = remoteIds.get(i);
+                byte[] cached = values == null ? null : values.get(i);
+                R r;
+                if (cached == null) {
+                    missIds.add(id);
+                } else if (cached.length == 0) {
+                    meters.nullHit.increment();
+                    nulls.add(id);
+                    localCache.put(keys.get(i), cached, generation);
+                } else if ((r = decodeQuietly(meters, keys.get(i), cached, type)) != null) {
+                    meters.hit.increment();
+                    found.put(id, r);
+                    localCache.put(keys.get(i), cached, generation);
+                    long expireAt = refreshDue(cached);
+                    if (expireAt != 0) {
+                        String key = keys.get(i);
+                        refreshEarly(meters, key, expireAt,
+                                () -> loadAndWrite(meters, key, id, single(dbBatchFallback), time, unit));
+                    }
+                } else {
+                    missIds.add(id);
+                }
+            }
+            //3.没命中的一次查库，流水线回写
+            if (!missIds.isEmpty()) {
+                meters.miss.increment(missIds.size());
+                long begin = System.nanoTime();
+                Map<ID, R> loaded = dbBatchFallback.apply(missIds);
+                long elapsed = System.nanoTime() - begin;
+                meters.load.record(elapsed, TimeUnit.NANOSECONDS);
+                //一条IN查询的耗时摊到每个id上，作为单个key的重建耗时
+                int rebuildMillis = (int) (TimeUnit.NANOSECONDS.toMillis(elapsed) / missIds.size());
+                Map<String, byte[]> writes = new LinkedHashMap<>(missIds.size() * 2);
+                Map<String, Long> ttls = new HashMap<>(missIds.size() * 2);
+                for (ID id : missIds) {
+                    R r = loaded == null ? null : loaded.get(id);
+                    if (r == null) {
+                        nulls.add(id);
+                        writes.put(keyPrefix + id, NULL_VALUE);
+                        ttls.put(keyPrefix + id, jitter(TimeUnit.MINUTES.toMillis(CACHE_NULL_TTL)));
+                    } else {
+                        found.put(id, r);
+                        long ttl = jitter(unit.toMillis(time));
+                        writes.put(keyPrefix + id, cacheCodecs.encode(r, System.currentTimeMillis() + ttl, rebuildMillis));
+                        ttls.put(keyPrefix + id, ttl);
+                    }
+                }
+                writeAll(writes, ttls);
+                writes.forEach((key, bytes) -> localCache.put(key, bytes, generation));
+            }
+        }
+        //4.按调用方的顺序返回
+        List<R> result = new ArrayList<>(ids.size());
+        for (ID id : ids) {
+            R r = found.get(id);
+            if (r != null) {
+                result.add(r);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 批量写入，一次流水线，用于预热。过期时间和queryWithPassThrough写入的一样带随机浮动
+     */
+    public <R,ID> void setBatch(String keyPrefix, Map<ID,R> values, Long time, TimeUnit unit) {
+        if (values.isEmpty()) {
+            return;
+        }
+        Map<String, byte[]> writes = new LinkedHashMap<>(values.size() * 2);
+        Map<String, Long> ttls = new HashMap<>(values.size() * 2);
+        values.forEach((id, r) -> {
+            long ttl = jitter(unit.toMillis(time));
+            writes.put(keyPrefix + id, cacheCodecs.encode(r, System.currentTimeMillis() + ttl, 0));
+            ttls.put(keyPrefix + id, ttl);
+        });
+        writeAll(writes, ttls);
+    }
+
+    private void writeAll(Map<String, byte[]> writes, Map<String, Long> ttls) {
+        cacheRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            writes.forEach((key, bytes) -> connection.pSetEx(
+                    key.getBytes(StandardCharsets.UTF_8), ttls.get(key), bytes));
             return null;
+        });
+    }
+
+    /**
+     * 删除缓存：删redis，并广播让所有节点清掉本地缓存
+     */
+    public void delete(String key) {
+        stringRedisTemplate.delete(key);
+        localCache.invalidate(key);
+    }
+
+    /**
+     * 批量删除，一条DEL
+     */
+    public void delete(Collection<String> keys) {
+        stringRedisTemplate.delete(keys);
+        for (String key : keys) {
+            localCache.invalidate(key);
         }
-        //6.存在，将数据写入redis
-        this.set(key,r,time,unit);
-        //7.返回
-        return r;
     }
 
+    /**
+     * 批量查库的函数用来查单个id
+     */
+    private static <R,ID> Function<ID,R> single(Function<List<ID>, Map<ID,R>> dbBatchFallback) {
+        return id -> {
+            Map<ID, R> loaded = dbBatchFallback.apply(Collections.singletonList(id));
+            return loaded == null ? null : loaded.get(id);
+        };
+    }
+
+    private <R> R decodeQuietly(CacheMetrics.Meters meters, String key, byte[] bytes, Class<R> type) {
+        try {
+            return cacheCodecs.decode(bytes, type);
+        } catch (Exception e) {
+            meters.decodeError.increment();
+            log.warn("缓存值无法解析，重新加载 {}", key, e);
+            return null;
+        }
+    }
 
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
-    private <R,ID> R queryWithLogicalExpire(
+    private <R> List<R> decodeListQuietly(CacheMetrics.Meters meters, String key, byte[] bytes, Class<R> type) {
+        try {
+            return cacheCodecs.decodeList(bytes, type);
+        } catch (Exception e) {
+            meters.decodeError.increment();
+            log.warn("缓存值无法解析，重新加载 {}", key, e);
+            return null;
+        }
+    }
+
+    /**
+     * 逻辑过期：key永不过期，过期时间存在value里。过期后先返回旧值，后台重建。
+     * 同一个key在本节点同时只有一个重建任务，跨节点靠分布式锁互斥，锁一直持有到重建完成。
+     * 需要提前预热，缓存里没有时直接返回null。
+     */
+    public <R,ID> R queryWithLogicalExpire(
             String keyPrefix, ID id, Class<R> type, Function<ID,R> dbFallback, Long time, TimeUnit unit) {
-        String key = CACHE_SHOP_KEY + id;
+        CacheMetrics.Meters meters = cacheMetrics.of(keyPrefix);
+        long begin = System.nanoTime();
+        try {
+            return logicalExpire(meters, keyPrefix + id, id, type, dbFallback, time, unit);
+        } finally {
+            meters.get.record(System.nanoTime() - begin, TimeUnit.NANOSECONDS);
+        }
+    }
 
-        //1.从redis中查询缓存
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
+    private <R,ID> R logicalExpire(CacheMetrics.Meters meters, String key, ID id, Class<R> type,
+                                   Function<ID,R> dbFallback, Long time, TimeUnit unit) {
+        hotKeyDetector.record(key);
+
+        //1.先查本地缓存，再查redis
+        byte[] cached = localCache.get(key);
+        boolean local = cached != null;
+        if (!local) {
+            long generation = localCache.generation();
+            cached = cacheRedisTemplate.opsForValue().get(key);
+            localCache.put(key, cached, generation);
+        }
         //2.判断是否存在
-        if(StrUtil.isBlank(shopJson)){
+        if(cached == null || cached.length == 0){
             //3.不存在，返回null
+            meters.miss.increment();
             return null;
         }
-        //4.存在，判断是否过期，把json反序列化为对象
-        RedisData redisData = JSONUtil.toBean(shopJson, RedisData.class);
-        R r = JSONUtil.toBean((JSONObject) redisData.getData(), type);
-        LocalDateTime expireTime = redisData.getExpireTime();
-        if(expireTime.isAfter(LocalDateTime.now())){
-            //5.未过期，返回用户信息
+        (local ? meters.localHit : meters.hit).increment();
+        //4.存在，判断是否过期，反序列化为对象
+        RedisData redisData = cacheCodecs.decodeLogical(cached, type);
+        @SuppressWarnings("unchecked")
+        R r = (R) redisData.getData();
+        if(!isExpired(redisData)){
+            //5.未过期，直接返回
             return r;
         }
-        //6.已过期，需要缓存重建
-        String lockKey = LOCK_SHOP_KEY + id;
-        //6.1尝试获取互斥锁
-        boolean getLock = tryLock(lockKey);
-        //6.2判断是否成功
-        if(getLock){
-            //成功，开启独立线程，实现缓存重建（利用线程池）
-            try {
-                CACHE_REBUILD_EXECUTOR.submit(() ->{
-                    //缓存重建
+        //6.已过期，提交重建，不等结果，返回旧值
+        rebuildOnce(meters, key,
+                current -> current == null || current.length == 0 || isExpired(cacheCodecs.decodeLogical(current, type)),
+                () -> {
                     R r1 = dbFallback.apply(id);
-                    this.setWithLogicExpire(key,r1,time,unit);
+                    if (r1 == null) {
+                        //数据已经删了，缓存也删掉
+                        delete(key);
+                    } else {
+                        setWithLogicExpire(key, r1, time, unit);
+                    }
                 });
-            } catch (Exception e) {
-                throw new RuntimeException(e);
-            } finally {
-                //释放锁
-                unlock(lockKey);
-            }
-        }
         //7.返回
         return r;
     }
 
-    private boolean tryLock(String key){
-        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", 10, TimeUnit.SECONDS);
-        //可能出现拆箱失败，所以用了这个
-        return BooleanUtil.isTrue(flag);
+    @Value("${hmdp.cache.rebuild.pool-size:4}")
+    private int rebuildPoolSize;
+    @Value("${hmdp.cache.rebuild.queue-capacity:256}")
+    private int rebuildQueueCapacity;
+    @Value("${hmdp.cache.rebuild.lock-ttl-seconds:10}")
+    private long rebuildLockTtlSeconds;
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    private ThreadPoolExecutor cacheRebuildExecutor;
+    private Counter rebuildRejected;
+    /**
+     * 本节点正在重建的key，single-flight：同一个key并发过期时只有第一个线程提交任务
+     */
+    private final ConcurrentMap<String, CompletableFuture<Void>> rebuilding = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    private void initRebuildExecutor() {
+        AtomicInteger threads = new AtomicInteger();
+        //有界队列，满了直接拒绝，调用方继续返回旧值，下次读到过期再试
+        cacheRebuildExecutor = new ThreadPoolExecutor(rebuildPoolSize, rebuildPoolSize,
+                60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(rebuildQueueCapacity),
+                r -> new Thread(r, "cache-rebuild-" + threads.incrementAndGet()),
+                new ThreadPoolExecutor.AbortPolicy());
+        cacheRebuildExecutor.allowCoreThreadTimeOut(true);
+        ExecutorServiceMetrics.monitor(meterRegistry, cacheRebuildExecutor, "cache.rebuild");
+        rebuildRejected = Counter.builder("cache.rebuild.rejected")
+                .description("重建队列已满被丢弃的缓存重建任务数").register(meterRegistry);
+        Gauge.builder("cache.rebuild.inflight", rebuilding, Map::size)
+                .description("本节点正在重建的key数").register(meterRegistry);
     }
 
-    private void unlock(String key){
-        stringRedisTemplate.delete(key);
+    @PreDestroy
+    private void destroy() {
+        cacheRebuildExecutor.shutdownNow();
+    }
+
+    /**
+     * 提交重建任务，同一个key已经在重建就直接返回正在进行的那个
+     */
+    private CompletableFuture<Void> rebuildOnce(CacheMetrics.Meters meters, String key, Predicate<byte[]> stillStale,
+                                                Runnable rebuild) {
+        CompletableFuture<Void> flight = new CompletableFuture<>();
+        CompletableFuture<Void> running = rebuilding.putIfAbsent(key, flight);
+        if (running != null) {
+            return running;
+        }
+        meters.refresh.increment();
+        try {
+            cacheRebuildExecutor.execute(() -> {
+                try {
+                    rebuildWithLock(meters, key, stillStale, rebuild);
+                    flight.complete(null);
+                } catch (Throwable e) {
+                    log.error("缓存重建失败 {}", key, e);
+                    flight.completeExceptionally(e);
+                } finally {
+                    rebuilding.remove(key, flight);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rebuildRejected.increment();
+            rebuilding.remove(key, flight);
+            flight.completeExceptionally(e);
+        }
+        return flight;
+    }
+
+    private void rebuildWithLock(CacheMetrics.Meters meters, String key, Predicate<byte[]> stillStale, Runnable rebuild) {
+        //1.分布式锁，别的节点在重建就放弃
+        SimpleRedisLock lock = new SimpleRedisLock(key, stringRedisTemplate);
+        if (!lock.tryLock(rebuildLockTtlSeconds)) {
+            return;
+        }
+        try {
+            //2.拿到锁后再看一次，可能别的节点刚重建完
+            if (!stillStale.test(cacheRedisTemplate.opsForValue().get(key))) {
+                return;
+            }
+            //3.重建，锁直到写完redis才释放
+            long begin = System.nanoTime();
+            rebuild.run();
+            meters.rebuild.record(System.nanoTime() - begin, TimeUnit.NANOSECONDS);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static boolean isExpired(RedisData redisData) {
+        LocalDateTime expireTime = redisData.getExpireTime();
+        return expireTime == null || !expireTime.isAfter(LocalDateTime.now());
     }
 }
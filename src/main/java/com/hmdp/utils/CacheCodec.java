@@ -0,0 +1,41 @@
+package com.hmdp.utils;
+
+import java.util.List;
+
+/**
+ * 缓存值的序列化方式。实现类注册成spring bean即可被CacheCodecs发现，
+ * 写入时用hmdp.cache.codec指定的那个，读取时按值的第一个字节(格式号)找对应的实现，
+ * 所以切换格式不需要清缓存，旧格式的值过期后自然换成新格式。
+ */
+public interface CacheCodec {
+    /**
+     * 配置里用的名字
+     */
+    String name();
+
+    /**
+     * 格式号，写在值第一个字节的低6位，1~63
+     */
+    byte format();
+
+    /**
+     * 序列化，value可以是单个对象、List或者RedisData
+     */
+    byte[] encode(Object value);
+
+    /**
+     * 能不能序列化这个值，不能的话CacheCodecs退回json
+     */
+    default boolean supports(Object value) {
+        return true;
+    }
+
+    <T> T decode(byte[] bytes, int offset, int length, Class<T> type);
+
+    <T> List<T> decodeList(byte[] bytes, int offset, int length, Class<T> type);
+
+    /**
+     * 反序列化逻辑过期的值，返回的RedisData里data已经是type类型
+     */
+    RedisData decodeLogical(byte[] bytes, int offset, int length, Class<?> type);
+}
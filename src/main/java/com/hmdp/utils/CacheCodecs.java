@@ -0,0 +1,177 @@
+package com.hmdp.utils;
+
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 缓存值的编解码入口。值的格式：
+ * 1字节头(低6位是codec格式号，0x80表示压缩，0x40表示带过期信息)
+ * + [带过期信息时8字节过期时间戳和4字节重建耗时] + [压缩时4字节原长度] + codec输出。
+ * 没有头、以 { 或 [ 开头的是改造前写入的json，按json读。
+ */
+@Component
+public class CacheCodecs {
+    private static final int COMPRESSED = 0x80;
+    private static final int EXPIRY = 0x40;
+    private static final int FORMAT_MASK = 0x3F;
+    /**
+     * 8字节过期时间戳 + 4字节重建耗时
+     */
+    private static final int EXPIRY_LENGTH = 12;
+
+    @Value("${hmdp.cache.codec:binary}")
+    private String codecName;
+    /**
+     * 序列化后超过这么多字节才压缩，0为不压缩
+     */
+    @Value("${hmdp.cache.compress-threshold:1024}")
+    private int compressThreshold;
+
+    @Resource
+    private List<CacheCodec> codecs;
+    @Resource
+    private JsonCacheCodec jsonCacheCodec;
+
+    private final CacheCodec[] byFormat = new CacheCodec[128];
+    private CacheCodec writer;
+    private final LZ4Compressor compressor = LZ4Factory.fastestInstance().fastCompressor();
+    private final LZ4FastDecompressor decompressor = LZ4Factory.fastestInstance().fastDecompressor();
+
+    @PostConstruct
+    private void init() {
+        for (CacheCodec codec : codecs) {
+            byFormat[codec.format()] = codec;
+            if (codec.name().equals(codecName)) {
+                writer = codec;
+            }
+        }
+        if (writer == null) {
+            throw new IllegalStateException("未知的缓存codec " + codecName);
+        }
+    }
+
+    public byte[] encode(Object value) {
+        return encode(value, 0, 0);
+    }
+
+    /**
+     * 带上物理过期时间和重建耗时，读的时候据此决定要不要提前刷新
+     * @param expireAt 过期的时间戳(毫秒)，0表示不带
+     * @param rebuildMillis 这次从数据库加载花了多久
+     */
+    public byte[] encode(Object value, long expireAt, int rebuildMillis) {
+        CacheCodec codec = writer.supports(value) ? writer : jsonCacheCodec;
+        byte[] body = codec.encode(value);
+        int header = expireAt > 0 ? 1 + EXPIRY_LENGTH : 1;
+        boolean compress = compressThreshold > 0 && body.length >= compressThreshold;
+        byte[] bytes;
+        if (compress) {
+            bytes = new byte[header + 4 + compressor.maxCompressedLength(body.length)];
+            writeInt(bytes, header, body.length);
+            int length = compressor.compress(body, 0, body.length, bytes, header + 4, bytes.length - header - 4);
+            bytes = Arrays.copyOf(bytes, header + 4 + length);
+        } else {
+            bytes = new byte[header + body.length];
+            System.arraycopy(body, 0, bytes, header, body.length);
+        }
+        bytes[0] = (byte) (codec.format() | (compress ? COMPRESSED : 0) | (expireAt > 0 ? EXPIRY : 0));
+        if (expireAt > 0) {
+            writeLong(bytes, 1, expireAt);
+            writeInt(bytes, 9, rebuildMillis);
+        }
+        return bytes;
+    }
+
+    /**
+     * @return 值里带的过期时间戳(毫秒)，没带返回0
+     */
+    public static long expireAt(byte[] bytes) {
+        return hasExpiry(bytes) ? readLong(bytes, 1) : 0;
+    }
+
+    /**
+     * @return 值里带的重建耗时(毫秒)，没带返回0
+     */
+    public static int rebuildMillis(byte[] bytes) {
+        return hasExpiry(bytes) ? readInt(bytes, 9) : 0;
+    }
+
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        if (isLegacyJson(bytes)) {
+            return jsonCacheCodec.decode(bytes, 0, bytes.length, type);
+        }
+        return read(bytes, (codec, body, offset) -> codec.decode(body, offset, body.length - offset, type));
+    }
+
+    public <T> List<T> decodeList(byte[] bytes, Class<T> type) {
+        if (isLegacyJson(bytes)) {
+            return jsonCacheCodec.decodeList(bytes, 0, bytes.length, type);
+        }
+        return read(bytes, (codec, body, offset) -> codec.decodeList(body, offset, body.length - offset, type));
+    }
+
+    public RedisData decodeLogical(byte[] bytes, Class<?> type) {
+        if (isLegacyJson(bytes)) {
+            return jsonCacheCodec.decodeLogical(bytes, 0, bytes.length, type);
+        }
+        return read(bytes, (codec, body, offset) -> codec.decodeLogical(body, offset, body.length - offset, type));
+    }
+
+    private static boolean isLegacyJson(byte[] bytes) {
+        return bytes[0] == '{' || bytes[0] == '[';
+    }
+
+    private static boolean hasExpiry(byte[] bytes) {
+        return bytes.length > 0 && !isLegacyJson(bytes) && (bytes[0] & EXPIRY) != 0;
+    }
+
+    /**
+     * 跳过头部，压缩的先解压，再交给对应的codec
+     */
+    private <T> T read(byte[] bytes, BodyReader<T> reader) {
+        CacheCodec codec = byFormat[bytes[0] & FORMAT_MASK];
+        if (codec == null) {
+            throw new IllegalStateException("未知的缓存格式 " + (bytes[0] & FORMAT_MASK));
+        }
+        int offset = hasExpiry(bytes) ? 1 + EXPIRY_LENGTH : 1;
+        if ((bytes[0] & COMPRESSED) == 0) {
+            return reader.read(codec, bytes, offset);
+        }
+        byte[] body = new byte[readInt(bytes, offset)];
+        decompressor.decompress(bytes, offset + 4, body, 0, body.length);
+        return reader.read(codec, body, 0);
+    }
+
+    private interface BodyReader<T> {
+        T read(CacheCodec codec, byte[] body, int offset);
+    }
+
+    private static void writeLong(byte[] bytes, int offset, long value) {
+        writeInt(bytes, offset, (int) (value >>> 32));
+        writeInt(bytes, offset + 4, (int) value);
+    }
+
+    private static long readLong(byte[] bytes, int offset) {
+        return (long) readInt(bytes, offset) << 32 | (readInt(bytes, offset + 4) & 0xFFFFFFFFL);
+    }
+
+    private static void writeInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF) << 24 | (bytes[offset + 1] & 0xFF) << 16
+                | (bytes[offset + 2] & 0xFF) << 8 | (bytes[offset + 3] & 0xFF);
+    }
+}
@@ -0,0 +1,165 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.CacheOutbox;
+import com.hmdp.mapper.CacheOutboxMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 数据库更新后删缓存，用本地消息表保证提交之后才删、删失败能补：
+ * 1.事务里调用invalidate，往tb_cache_outbox插一条，和业务数据一起提交或回滚；
+ * 2.提交后把key交给分发线程，攒批一条DEL删掉，再删掉对应的outbox记录；
+ * 3.过一段时间再删一次(延迟双删)，覆盖提交前后被读请求用旧数据(或从库的旧数据)回填的情况；
+ * 4.节点在提交后、删缓存前挂掉，或者redis出错，outbox记录会留下，定时扫描补删。
+ * 不在事务里调用时直接删，同样延迟再删一次。
+ */
+@Slf4j
+@Component
+public class CacheInvalidator {
+    @Resource
+    private CacheOutboxMapper cacheOutboxMapper;
+    @Resource
+    private CacheClient cacheClient;
+
+    /**
+     * 第二次删除的延迟，要大于一次读请求查库加回填的耗时(有从库时还要加上复制延迟)
+     */
+    @Value("${hmdp.cache.outbox.second-delete-delay-ms:1000}")
+    private long secondDeleteDelayMs;
+    @Value("${hmdp.cache.outbox.batch-size:200}")
+    private int batchSize;
+    /**
+     * outbox记录超过这么久还在，说明提交后没有删成功，由扫描补删
+     */
+    @Value("${hmdp.cache.outbox.grace-ms:10000}")
+    private long graceMs;
+
+    private ScheduledThreadPoolExecutor dispatcher;
+    private final Queue<CacheOutbox> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    @PostConstruct
+    private void init() {
+        dispatcher = new ScheduledThreadPoolExecutor(1, r -> new Thread(r, "cache-invalidator"));
+        dispatcher.setRemoveOnCancelPolicy(true);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        dispatcher.shutdown();
+    }
+
+    public void invalidate(String key) {
+        if (!TransactionSynchronizationManager.isActualTransactionActive()) {
+            //没有事务，数据已经落库，直接删
+            cacheClient.delete(key);
+            scheduleSecondDelete(Collections.singletonList(key));
+            return;
+        }
+        //1.和业务数据同一个事务写入outbox
+        CacheOutbox outbox = new CacheOutbox().setCacheKey(key).setCreateTime(LocalDateTime.now());
+        cacheOutboxMapper.insert(outbox);
+        //2.提交后再删缓存，回滚时outbox记录也没了，什么都不做
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                pending.add(outbox);
+                if (flushScheduled.compareAndSet(false, true)) {
+                    dispatcher.execute(CacheInvalidator.this::flush);
+                }
+            }
+        });
+    }
+
+    /**
+     * 分发线程里执行，把积攒的key按批删掉
+     */
+    private void flush() {
+        flushScheduled.set(false);
+        List<CacheOutbox> batch = new ArrayList<>(batchSize);
+        CacheOutbox outbox;
+        while ((outbox = pending.poll()) != null) {
+            batch.add(outbox);
+            if (batch.size() >= batchSize) {
+                dispatch(batch);
+                batch = new ArrayList<>(batchSize);
+            }
+        }
+        if (!batch.isEmpty()) {
+            dispatch(batch);
+        }
+    }
+
+    /**
+     * @return 是否删除成功
+     */
+    private boolean dispatch(List<CacheOutbox> batch) {
+        Set<String> keys = new LinkedHashSet<>();
+        List<Long> ids = new ArrayList<>(batch.size());
+        for (CacheOutbox outbox : batch) {
+            keys.add(outbox.getCacheKey());
+            ids.add(outbox.getId());
+        }
+        try {
+            cacheClient.delete(keys);
+            cacheOutboxMapper.deleteBatchIds(ids);
+        } catch (Exception e) {
+            //outbox记录还在，扫描时重试
+            log.error("删除缓存失败，等待补删 {}", keys, e);
+            return false;
+        }
+        scheduleSecondDelete(keys);
+        return true;
+    }
+
+    private void scheduleSecondDelete(Collection<String> keys) {
+        if (secondDeleteDelayMs <= 0) {
+            return;
+        }
+        dispatcher.schedule(() -> {
+            try {
+                cacheClient.delete(keys);
+            } catch (Exception e) {
+                //第二次删除失败不补，缓存靠ttl过期
+                log.warn("延迟删除缓存失败 {}", keys, e);
+            }
+        }, secondDeleteDelayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 补删提交后没删成功的key，多个节点同时扫到同一批只是多删几次
+     */
+    @Scheduled(initialDelayString = "${hmdp.cache.outbox.sweep-interval-ms:5000}",
+            fixedDelayString = "${hmdp.cache.outbox.sweep-interval-ms:5000}")
+    public void sweep() {
+        while (true) {
+            List<CacheOutbox> stale = cacheOutboxMapper.selectList(new QueryWrapper<CacheOutbox>()
+                    .lt("create_time", LocalDateTime.now().minusNanos(TimeUnit.MILLISECONDS.toNanos(graceMs)))
+                    .orderByAsc("id")
+                    .last("limit " + batchSize));
+            if (stale.isEmpty()) {
+                return;
+            }
+            log.warn("补删{}个缓存", stale.size());
+            //删失败记录还在，下次再扫，避免在这里死循环
+            if (!dispatch(stale) || stale.size() < batchSize) {
+                return;
+            }
+        }
+    }
+}
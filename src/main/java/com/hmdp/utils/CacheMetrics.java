@@ -0,0 +1,102 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * CacheClient的指标，按key前缀打标签。每个前缀的计数器和计时器第一次用到时注册好缓存起来，
+ * 之后命中路径上只有一次map查找和计数，不分配对象。
+ * 计时器带HdrHistogram的分位数(p50/p95/p99)，同时发布直方图桶，prometheus上可以跨节点聚合。
+ */
+@Component
+public class CacheMetrics {
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    private final ConcurrentMap<String, Meters> byPrefix = new ConcurrentHashMap<>();
+
+    public Meters of(String keyPrefix) {
+        Meters meters = byPrefix.get(keyPrefix);
+        if (meters == null) {
+            //computeIfAbsent的lambda要捕获this，放在未命中的分支里
+            meters = byPrefix.computeIfAbsent(keyPrefix, Meters::new);
+        }
+        return meters;
+    }
+
+    public class Meters {
+        /**
+         * 本地缓存命中
+         */
+        public final Counter localHit;
+        /**
+         * redis命中
+         */
+        public final Counter hit;
+        /**
+         * 命中空值(数据不存在)
+         */
+        public final Counter nullHit;
+        /**
+         * 没命中，要查库
+         */
+        public final Counter miss;
+        /**
+         * 缓存值解析失败，当作没命中
+         */
+        public final Counter decodeError;
+        /**
+         * XFetch提前刷新、逻辑过期触发的后台重建次数
+         */
+        public final Counter refresh;
+        /**
+         * 单个key查询的总耗时，包括查库
+         */
+        public final Timer get;
+        /**
+         * 批量查询的总耗时
+         */
+        public final Timer batch;
+        /**
+         * 查库耗时
+         */
+        public final Timer load;
+        /**
+         * 后台重建耗时(拿到锁之后)
+         */
+        public final Timer rebuild;
+
+        private Meters(String keyPrefix) {
+            localHit = result(keyPrefix, "local");
+            hit = result(keyPrefix, "hit");
+            nullHit = result(keyPrefix, "null");
+            miss = result(keyPrefix, "miss");
+            decodeError = Counter.builder("cache.decode.errors").tag("prefix", keyPrefix)
+                    .description("无法解析的缓存值").register(meterRegistry);
+            refresh = Counter.builder("cache.refresh").tag("prefix", keyPrefix)
+                    .description("提交的后台刷新/重建").register(meterRegistry);
+            get = timer("cache.get", keyPrefix, "单个key查询耗时");
+            batch = timer("cache.batch", keyPrefix, "批量查询耗时");
+            load = timer("cache.load", keyPrefix, "缓存未命中时查库的耗时");
+            rebuild = timer("cache.rebuild.duration", keyPrefix, "后台重建耗时");
+        }
+
+        private Counter result(String keyPrefix, String result) {
+            return Counter.builder("cache.gets").tag("prefix", keyPrefix).tag("result", result)
+                    .description("按结果统计的缓存查询次数，local/hit/null/miss").register(meterRegistry);
+        }
+
+        private Timer timer(String name, String keyPrefix, String description) {
+            return Timer.builder(name).tag("prefix", keyPrefix)
+                    .publishPercentiles(0.5, 0.95, 0.99)
+                    .publishPercentileHistogram()
+                    .description(description).register(meterRegistry);
+        }
+    }
+}
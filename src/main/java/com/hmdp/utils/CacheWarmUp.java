@@ -0,0 +1,191 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.Blog;
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.BlogMapper;
+import com.hmdp.mapper.ShopMapper;
+import com.hmdp.service.IShopTypeService;
+import com.hmdp.service.IUserService;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.geo.Point;
+import org.springframework.data.redis.connection.RedisGeoCommands;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 启动预热：按主键分页扫店铺表，每页一次流水线写店铺缓存、按类型GEOADD到 shop:geo:{typeId}；
+ * 再加载店铺类型、点赞最多的前N篇笔记和它们的作者。
+ * 预热完成(或超时)之前健康检查的readiness组返回OUT_OF_SERVICE，负载均衡不会把流量切过来；
+ * 超时后照常就绪，预热在后台继续。进度在 /actuator/health 的cacheWarmUp里。
+ * 集群里第一个节点预热后打上标记，有效期和店铺缓存一样，期间其它节点启动不再重复预热。
+ */
+@Slf4j
+@Component
+public class CacheWarmUp implements HealthIndicator {
+    @Value("${hmdp.warm-up.enabled:true}")
+    private boolean enabled;
+    @Value("${hmdp.warm-up.page-size:500}")
+    private int pageSize;
+    @Value("${hmdp.warm-up.hot-blogs:100}")
+    private int hotBlogs;
+    /**
+     * 超过这么久还没预热完也报告就绪
+     */
+    @Value("${hmdp.warm-up.timeout-ms:60000}")
+    private long timeoutMs;
+
+    @Resource
+    private ShopMapper shopMapper;
+    @Resource
+    private BlogMapper blogMapper;
+    @Resource
+    private IShopTypeService shopTypeService;
+    @Resource
+    private IUserService userService;
+    @Resource
+    private CacheClient cacheClient;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedissonClient redissonClient;
+
+    private volatile String phase = "pending";
+    private volatile long startedAt;
+    private volatile long finishedAt;
+    private volatile String error;
+    private final AtomicLong shops = new AtomicLong();
+    private final AtomicLong shopTypes = new AtomicLong();
+    private final AtomicLong blogs = new AtomicLong();
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void warmUpAsync() {
+        if (!enabled) {
+            return;
+        }
+        startedAt = System.currentTimeMillis();
+        Thread thread = new Thread(this::warmUp, "cache-warm-up");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void warmUp() {
+        RLock lock = redissonClient.getLock(LOCK_WARM_UP_KEY);
+        lock.lock();
+        try {
+            //别的节点刚预热过，redis里的缓存还在
+            if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(WARM_UP_KEY))) {
+                phase = "skipped";
+                return;
+            }
+            //1.店铺缓存和地理位置
+            phase = "shops";
+            warmUpShops();
+            //2.店铺类型
+            phase = "shop-types";
+            shopTypes.set(shopTypeService.queryList().size());
+            //3.热门笔记和作者
+            phase = "blogs";
+            warmUpBlogs();
+            stringRedisTemplate.opsForValue().set(WARM_UP_KEY, String.valueOf(System.currentTimeMillis()),
+                    CACHE_SHOP_TTL, TimeUnit.MINUTES);
+            phase = "done";
+            log.info("缓存预热完成，店铺{}个，笔记{}篇，耗时{}ms",
+                    shops.get(), blogs.get(), System.currentTimeMillis() - startedAt);
+        } catch (Exception e) {
+            //预热失败不影响服务，只是前面的请求要查库
+            error = e.toString();
+            phase = "failed";
+            log.error("缓存预热失败", e);
+        } finally {
+            lock.unlock();
+            finishedAt = System.currentTimeMillis();
+        }
+    }
+
+    private void warmUpShops() {
+        long last = 0;
+        List<Shop> page;
+        do {
+            //按主键分页：id > last order by id limit pageSize
+            page = shopMapper.selectList(new QueryWrapper<Shop>()
+                    .gt("id", last).orderByAsc("id").last("limit " + pageSize));
+            if (page.isEmpty()) {
+                break;
+            }
+            Map<Long, Shop> byId = new LinkedHashMap<>(page.size() * 2);
+            Map<Long, List<RedisGeoCommands.GeoLocation<String>>> byType = new HashMap<>();
+            for (Shop shop : page) {
+                byId.put(shop.getId(), shop);
+                byType.computeIfAbsent(shop.getTypeId(), typeId -> new ArrayList<>())
+                        .add(new RedisGeoCommands.GeoLocation<>(shop.getId().toString(), new Point(shop.getX(), shop.getY())));
+            }
+            cacheClient.setBatch(CACHE_SHOP_KEY, byId, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+            //每个类型一条GEOADD，放在一个流水线里
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                byType.forEach((typeId, locations) -> conn.geoAdd(SHOP_GEO_KEY + typeId, locations));
+                return null;
+            });
+            last = page.get(page.size() - 1).getId();
+            shops.addAndGet(page.size());
+        } while (page.size() == pageSize);
+    }
+
+    private void warmUpBlogs() {
+        if (hotBlogs <= 0) {
+            return;
+        }
+        List<Blog> hot = blogMapper.selectList(new QueryWrapper<Blog>()
+                .orderByDesc("liked").last("limit " + hotBlogs));
+        Map<Long, Blog> byId = new LinkedHashMap<>(hot.size() * 2);
+        for (Blog blog : hot) {
+            byId.put(blog.getId(), blog);
+        }
+        cacheClient.setBatch(CACHE_BLOG_KEY, byId, CACHE_BLOG_TTL, TimeUnit.MINUTES);
+        //作者走批量查询，顺便写入用户缓存
+        userService.queryUserDTOs(hot.stream().map(Blog::getUserId).distinct().collect(Collectors.toList()));
+        blogs.set(hot.size());
+    }
+
+    @Override
+    public Health health() {
+        if (!enabled) {
+            return Health.up().withDetail("phase", "disabled").build();
+        }
+        long now = System.currentTimeMillis();
+        boolean timedOut = finishedAt == 0 && startedAt > 0 && now - startedAt > timeoutMs;
+        Health.Builder builder = finishedAt > 0 || timedOut ? Health.up() : Health.outOfService();
+        builder.withDetail("phase", phase)
+                .withDetail("shops", shops.get())
+                .withDetail("shopTypes", shopTypes.get())
+                .withDetail("blogs", blogs.get());
+        if (startedAt > 0) {
+            builder.withDetail("elapsedMs", (finishedAt > 0 ? finishedAt : now) - startedAt);
+        }
+        if (timedOut) {
+            builder.withDetail("timedOut", true);
+        }
+        if (error != null) {
+            builder.withDetail("error", error);
+        }
+        return builder.build();
+    }
+}
@@ -0,0 +1,216 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+import com.hmdp.dto.HotKeyDTO;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * 热点key探测。按sample-rate抽样记录key的访问，计数放在count-min sketch里，
+ * 滑动窗口分成几个桶，每个桶一个sketch，定时轮换并清空最老的桶；
+ * 估算值最大的top-k个key放在小顶堆里，每次轮换时重新估算一遍，超过阈值的就是热点key。
+ * count-min sketch只会高估不会低估，冷key和热key哈希冲突时可能被误判为热点，反过来不会漏掉。
+ */
+@Component
+public class HotKeyDetector {
+    @Value("${hmdp.cache.hot-key.enabled:true}")
+    private boolean enabled;
+    /**
+     * 每多少次访问抽样记录一次
+     */
+    @Value("${hmdp.cache.hot-key.sample-rate:8}")
+    private int sampleRate;
+    @Value("${hmdp.cache.hot-key.bucket-ms:2000}")
+    private long bucketMillis;
+    @Value("${hmdp.cache.hot-key.buckets:5}")
+    private int bucketCount;
+    @Value("${hmdp.cache.hot-key.width:2048}")
+    private int width;
+    @Value("${hmdp.cache.hot-key.depth:4}")
+    private int depth;
+    @Value("${hmdp.cache.hot-key.top-k:50}")
+    private int topK;
+    @Value("${hmdp.cache.hot-key.threshold-qps:200}")
+    private double thresholdQps;
+
+    /**
+     * 每个桶一个depth*width的sketch，按行平铺
+     */
+    private AtomicIntegerArray[] buckets;
+    private volatile int cursor;
+    private int mask;
+
+    /**
+     * top-k小顶堆，和按key的索引一起用heap加锁
+     */
+    private final PriorityQueue<Candidate> heap = new PriorityQueue<>(Comparator.comparingLong(c -> c.count));
+    private final Map<String, Candidate> candidates = new HashMap<>();
+    /**
+     * 堆满时的最小计数，低于它的key不用加锁
+     */
+    private volatile long floor;
+    /**
+     * 上次轮换时算出的热点key -> qps
+     */
+    private volatile Map<String, Double> hot = Collections.emptyMap();
+
+    @PostConstruct
+    private void init() {
+        //宽度取2的幂，取下标用位运算
+        int w = Integer.highestOneBit(Math.max(2, width - 1)) << 1;
+        mask = w - 1;
+        width = w;
+        buckets = new AtomicIntegerArray[bucketCount];
+        for (int i = 0; i < bucketCount; i++) {
+            buckets[i] = new AtomicIntegerArray(depth * width);
+        }
+    }
+
+    /**
+     * 记一次访问，按sample-rate抽样，没抽中只多一次随机数
+     */
+    public void record(String key) {
+        if (enabled && (sampleRate <= 1 || ThreadLocalRandom.current().nextInt(sampleRate) == 0)) {
+            recordSampled(key);
+        }
+    }
+
+    private void recordSampled(String key) {
+        int[] indexes = indexes(key);
+        AtomicIntegerArray bucket = buckets[cursor];
+        for (int i = 0; i < depth; i++) {
+            bucket.incrementAndGet(indexes[i]);
+        }
+        long count = estimate(indexes);
+        if (count <= floor) {
+            return;
+        }
+        synchronized (heap) {
+            Candidate candidate = candidates.get(key);
+            if (candidate != null) {
+                heap.remove(candidate);
+                candidate.count = count;
+                heap.add(candidate);
+            } else if (heap.size() < topK) {
+                candidate = new Candidate(key, indexes, count);
+                candidates.put(key, candidate);
+                heap.add(candidate);
+            } else if (heap.peek().count < count) {
+                candidates.remove(heap.poll().key);
+                candidate = new Candidate(key, indexes, count);
+                candidates.put(key, candidate);
+                heap.add(candidate);
+            }
+            floor = heap.size() < topK ? 0 : heap.peek().count;
+        }
+    }
+
+    public boolean isHot(String key) {
+        return hot.containsKey(key);
+    }
+
+    /**
+     * @return top-k个key和它们的qps，按qps从高到低
+     */
+    public List<HotKeyDTO> hotKeys() {
+        List<HotKeyDTO> keys = new ArrayList<>();
+        synchronized (heap) {
+            for (Candidate candidate : heap) {
+                double qps = qps(candidate.count);
+                keys.add(new HotKeyDTO(candidate.key, qps, qps >= thresholdQps));
+            }
+        }
+        keys.sort(Comparator.comparing(HotKeyDTO::getQps).reversed());
+        return keys;
+    }
+
+    /**
+     * 窗口前移一个桶：清空最老的桶作为当前桶，重新估算堆里的key，算出新的热点集合
+     */
+    @Scheduled(fixedRateString = "${hmdp.cache.hot-key.bucket-ms:2000}")
+    public void rotate() {
+        if (!enabled) {
+            return;
+        }
+        int next = (cursor + 1) % bucketCount;
+        AtomicIntegerArray bucket = buckets[next];
+        for (int i = 0; i < bucket.length(); i++) {
+            bucket.set(i, 0);
+        }
+        cursor = next;
+
+        Map<String, Double> hot = new HashMap<>();
+        synchronized (heap) {
+            List<Candidate> all = new ArrayList<>(heap);
+            heap.clear();
+            for (Candidate candidate : all) {
+                candidate.count = estimate(candidate.indexes);
+                if (candidate.count == 0) {
+                    candidates.remove(candidate.key);
+                    continue;
+                }
+                heap.add(candidate);
+                double qps = qps(candidate.count);
+                if (qps >= thresholdQps) {
+                    hot.put(candidate.key, qps);
+                }
+            }
+            floor = heap.size() < topK ? 0 : heap.peek().count;
+        }
+        this.hot = hot;
+    }
+
+    /**
+     * 抽样计数还原成整个窗口的每秒访问次数
+     */
+    private double qps(long count) {
+        return count * (double) Math.max(1, sampleRate) * 1000 / (bucketMillis * bucketCount);
+    }
+
+    /**
+     * 双重哈希得到每一行的下标(已经加上行偏移)
+     */
+    private int[] indexes(String key) {
+        long hash = MurmurHash.hash64(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        int[] indexes = new int[depth];
+        for (int i = 0; i < depth; i++) {
+            indexes[i] = i * width + ((h1 + i * h2) & mask);
+        }
+        return indexes;
+    }
+
+    /**
+     * 每一行把所有桶加起来，取各行最小值
+     */
+    private long estimate(int[] indexes) {
+        long min = Long.MAX_VALUE;
+        for (int index : indexes) {
+            long sum = 0;
+            for (AtomicIntegerArray bucket : buckets) {
+                sum += bucket.get(index);
+            }
+            min = Math.min(min, sum);
+        }
+        return min;
+    }
+
+    private static class Candidate {
+        private final String key;
+        private final int[] indexes;
+        private long count;
+
+        Candidate(String key, int[] indexes, long count) {
+            this.key = key;
+            this.indexes = indexes;
+            this.count = count;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.HotKeyDTO;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.List;
+
+/**
+ * 热点key的运维端点，挂在管理端口上，不对外暴露：GET /actuator/hotkeys
+ */
+@Component
+@Endpoint(id = "hotkeys")
+public class HotKeyEndpoint {
+    @Resource
+    private HotKeyDetector hotKeyDetector;
+
+    /**
+     * 本节点最近一个窗口访问最多的key和估算的qps。hot表示超过阈值，其中CacheClient管理的key会进本地缓存
+     */
+    @ReadOperation
+    public List<HotKeyDTO> hotKeys() {
+        return hotKeyDetector.hotKeys();
+    }
+}
@@ -0,0 +1,226 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import com.hmdp.mapper.BlogMapper;
+import com.hmdp.mapper.ShopMapper;
+import com.hmdp.mapper.UserMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.env.Environment;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import static com.hmdp.utils.RedisConstants.BLOOM_ADD_CHANNEL;
+import static com.hmdp.utils.RedisConstants.LOCK_BLOOM_KEY;
+
+/**
+ * 店铺、笔记、用户id的布隆过滤器，防缓存穿透：不存在的id在查redis和数据库之前就拦掉。
+ * 启动后在后台按主键分页扫表构建，构建完之前不拦截；新增数据时调用add，写redis后在 bloom:add 频道广播，
+ * 各节点补到本地镜像，另外定时从redis重新加载一次兜底。写redis失败的id放进重试队列，定时重写，
+ * 否则别的节点到redis确认时会一直把它当成不存在。
+ * 大小和误判率：hmdp.bloom.expected-insertions / fpp，可以按名字单独配置，如 hmdp.bloom.shop.fpp
+ */
+@Slf4j
+@Component
+public class IdBloomFilters {
+    public static final String SHOP = "shop";
+    public static final String BLOG = "blog";
+    public static final String USER = "user";
+
+    @Value("${hmdp.bloom.expected-insertions:1000000}")
+    private long expectedInsertions;
+    @Value("${hmdp.bloom.fpp:0.01}")
+    private double fpp;
+    @Value("${hmdp.bloom.page-size:1000}")
+    private int pageSize;
+
+    @Resource
+    private Environment environment;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedissonClient redissonClient;
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+    @Resource
+    private ShopMapper shopMapper;
+    @Resource
+    private BlogMapper blogMapper;
+    @Resource
+    private UserMapper userMapper;
+
+    private final Map<String, RedisBloomFilter> filters = new LinkedHashMap<>();
+    private final Map<String, BaseMapper<?>> sources = new LinkedHashMap<>();
+    /**
+     * 写redis失败等待重试的id，内容 名字:id
+     */
+    private final Queue<String> failed = new ConcurrentLinkedQueue<>();
+
+    @PostConstruct
+    private void init() {
+        register(SHOP, shopMapper);
+        register(BLOG, blogMapper);
+        register(USER, userMapper);
+        //别的节点新增的id，消息内容 名字:id
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            String body = new String(message.getBody(), StandardCharsets.UTF_8);
+            try {
+                int index = body.lastIndexOf(':');
+                RedisBloomFilter filter = filters.get(body.substring(0, index));
+                if (filter != null) {
+                    filter.addLocal(Long.valueOf(body.substring(index + 1)));
+                }
+            } catch (Exception e) {
+                log.warn("无法解析布隆过滤器消息 {}", body);
+            }
+        }, new ChannelTopic(BLOOM_ADD_CHANNEL));
+    }
+
+    private void register(String name, BaseMapper<?> mapper) {
+        long n = environment.getProperty("hmdp.bloom." + name + ".expected-insertions", Long.class, expectedInsertions);
+        double p = environment.getProperty("hmdp.bloom." + name + ".fpp", Double.class, fpp);
+        filters.put(name, new RedisBloomFilter(name, n, p, stringRedisTemplate));
+        sources.put(name, mapper);
+    }
+
+    public boolean mightContain(String name, Long id) {
+        return id != null && filters.get(name).mightContain(id);
+    }
+
+    public void add(String name, Long id) {
+        if (id == null) {
+            return;
+        }
+        write(name, id);
+    }
+
+    private boolean write(String name, Long id) {
+        try {
+            filters.get(name).add(id);
+            stringRedisTemplate.convertAndSend(BLOOM_ADD_CHANNEL, name + ":" + id);
+            return true;
+        } catch (Exception e) {
+            //本地镜像已经有了，别的节点到redis确认时会误拦，重试写进去
+            log.error("布隆过滤器写入失败，稍后重试 {} {}", name, id, e);
+            failed.add(name + ":" + id);
+            return false;
+        }
+    }
+
+    /**
+     * 重写之前写redis失败的id，这一轮又失败的留到下一轮
+     */
+    @Scheduled(initialDelayString = "${hmdp.bloom.retry-interval-ms:5000}",
+            fixedDelayString = "${hmdp.bloom.retry-interval-ms:5000}")
+    public void retryFailed() {
+        for (int n = failed.size(); n > 0; n--) {
+            String entry = failed.poll();
+            if (entry == null) {
+                return;
+            }
+            int index = entry.lastIndexOf(':');
+            if (!write(entry.substring(0, index), Long.valueOf(entry.substring(index + 1)))) {
+                //redis还是不可用，剩下的下一轮再试
+                return;
+            }
+        }
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void buildAsync() {
+        Thread thread = new Thread(() -> filters.forEach((name, filter) -> {
+            try {
+                build(name, filter);
+            } catch (Exception e) {
+                log.error("布隆过滤器构建失败，{}暂不拦截", name, e);
+            }
+        }), "bloom-filter-init");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 集群里只有第一个启动的节点扫表，构建好后打上标记；其它节点直接加载
+     */
+    private void build(String name, RedisBloomFilter filter) {
+        String builtKey = filter.getKey() + ":built";
+        RLock lock = redissonClient.getLock(LOCK_BLOOM_KEY + name);
+        lock.lock();
+        try {
+            if (!Boolean.TRUE.equals(stringRedisTemplate.hasKey(builtKey))) {
+                //1.扫表写临时key
+                String buildingKey = filter.getKey() + ":building";
+                stringRedisTemplate.delete(buildingKey);
+                long count = 0;
+                long last = 0;
+                List<Long> ids;
+                do {
+                    ids = nextPage(sources.get(name), last);
+                    if (!ids.isEmpty()) {
+                        filter.addAll(buildingKey, ids);
+                        last = ids.get(ids.size() - 1);
+                        count += ids.size();
+                    }
+                } while (ids.size() == pageSize);
+                //2.和构建期间add进来的合并，打上标记
+                filter.merge(buildingKey);
+                stringRedisTemplate.opsForValue().set(builtKey, String.valueOf(System.currentTimeMillis()));
+                log.info("布隆过滤器{}构建完成，共{}个id", name, count);
+            }
+        } finally {
+            lock.unlock();
+        }
+        //3.开始拦截，本地不命中的到redis确认；加载到本地，减少确认次数
+        filter.markBuilt();
+        filter.loadLocal();
+    }
+
+    /**
+     * 定时从redis重新加载，补上节点没收到的广播(订阅断线重连期间的消息会丢)
+     */
+    @Scheduled(initialDelayString = "${hmdp.bloom.reload-interval-ms:300000}",
+            fixedDelayString = "${hmdp.bloom.reload-interval-ms:300000}")
+    public void reload() {
+        filters.forEach((name, filter) -> {
+            if (!filter.isReady()) {
+                return;
+            }
+            try {
+                filter.loadLocal();
+            } catch (Exception e) {
+                log.warn("布隆过滤器重新加载失败 {}", name, e);
+            }
+        });
+    }
+
+    /**
+     * 按主键分页：id > last order by id limit pageSize
+     */
+    private <T> List<Long> nextPage(BaseMapper<T> mapper, long last) {
+        List<Object> rows = mapper.selectObjs(new QueryWrapper<T>()
+                .select("id").gt("id", last).orderByAsc("id").last("limit " + pageSize));
+        List<Long> ids = new ArrayList<>(rows.size());
+        for (Object row : rows) {
+            ids.add(Long.valueOf(String.valueOf(row)));
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,48 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * 原来的hutool json格式。没有格式号的旧值(以 { 或 [ 开头)也按这个解析
+ */
+@Component
+public class JsonCacheCodec implements CacheCodec {
+    public static final byte FORMAT = 1;
+
+    @Override
+    public String name() {
+        return "json";
+    }
+
+    @Override
+    public byte format() {
+        return FORMAT;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, int offset, int length, Class<T> type) {
+        return JSONUtil.toBean(new String(bytes, offset, length, StandardCharsets.UTF_8), type);
+    }
+
+    @Override
+    public <T> List<T> decodeList(byte[] bytes, int offset, int length, Class<T> type) {
+        return JSONUtil.toList(new String(bytes, offset, length, StandardCharsets.UTF_8), type);
+    }
+
+    @Override
+    public RedisData decodeLogical(byte[] bytes, int offset, int length, Class<?> type) {
+        RedisData redisData = decode(bytes, offset, length, RedisData.class);
+        redisData.setData(JSONUtil.toBean((JSONObject) redisData.getData(), type));
+        return redisData;
+    }
+}
@@ -0,0 +1,125 @@
+package com.hmdp.utils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisConstants.CACHE_INVALIDATE_CHANNEL;
+
+/**
+ * CacheClient的本地一级缓存，存redis里的原始字节(空数组表示数据不存在)。
+ * caffeine按key长度+value字节数计重，超出容量时按W-TinyLFU决定淘汰谁、新值是否准入。
+ * 删除缓存时通过pub/sub广播，所有节点(包括自己)收到后清掉本地副本；
+ * 广播丢失(比如订阅连接断开)时，陈旧时间不超过ttl。
+ * admission为hot时只缓存HotKeyDetector判定的热点key，key变热后下一次读redis时自动提升到本地。
+ */
+@Slf4j
+@Component
+public class LocalCache {
+    @Value("${hmdp.cache.local.enabled:true}")
+    private boolean enabled;
+    @Value("${hmdp.cache.local.max-weight:33554432}")
+    private long maxWeight;
+    @Value("${hmdp.cache.local.ttl-seconds:5}")
+    private long ttlSeconds;
+    /**
+     * all：所有key都进本地缓存；hot：只有热点key进
+     */
+    @Value("${hmdp.cache.local.admission:all}")
+    private String admission;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+    @Resource
+    private HotKeyDetector hotKeyDetector;
+
+    private Cache<String, byte[]> cache;
+    private boolean hotOnly;
+    /**
+     * 每次失效加一。读redis前记下，写本地前比较，
+     * 防止查redis期间发生的删除被随后写入的旧值覆盖
+     */
+    private final AtomicLong generation = new AtomicLong();
+
+    @PostConstruct
+    private void init() {
+        if (!enabled) {
+            return;
+        }
+        hotOnly = "hot".equals(admission);
+        cache = Caffeine.newBuilder()
+                .maximumWeight(maxWeight)
+                .weigher((String key, byte[] value) -> key.length() + value.length)
+                .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                .build();
+        redisMessageListenerContainer.addMessageListener((message, pattern) ->
+                evict(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return 本地缓存的值，没有返回null
+     */
+    public byte[] get(String key) {
+        return enabled ? cache.getIfPresent(key) : null;
+    }
+
+    public long generation() {
+        return generation.get();
+    }
+
+    /**
+     * 写入本地缓存，generation是读redis之前拿到的值，期间有过失效就不写
+     */
+    public void put(String key, byte[] value, long generation) {
+        if (!enabled || value == null || this.generation.get() != generation) {
+            return;
+        }
+        if (hotOnly && !hotKeyDetector.isHot(key)) {
+            return;
+        }
+        cache.put(key, value);
+        //写入和失效并发时，失效可能先清了缓存再被这次写入覆盖，写完再检查一次
+        if (this.generation.get() != generation) {
+            cache.asMap().remove(key, value);
+        }
+    }
+
+    /**
+     * 清掉本节点的副本并通知其它节点
+     */
+    public void invalidate(String key) {
+        if (!enabled) {
+            return;
+        }
+        evict(key);
+        try {
+            stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, key);
+        } catch (Exception e) {
+            //广播失败时其它节点靠ttl过期
+            log.warn("广播缓存失效失败 {}", key, e);
+        }
+    }
+
+    private void evict(String key) {
+        generation.incrementAndGet();
+        cache.invalidate(key);
+    }
+}
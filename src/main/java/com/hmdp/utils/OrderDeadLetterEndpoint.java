@@ -0,0 +1,41 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.Result;
+import com.hmdp.service.IVoucherOrderService;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Selector;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+
+/**
+ * 订单死信的运维端点，挂在管理端口上，不对外暴露：
+ * GET /actuator/orderdlq?start=&count= 查询死信，POST /actuator/orderdlq/{id} 把一条死信重放回原分区
+ */
+@Component
+@Endpoint(id = "orderdlq")
+public class OrderDeadLetterEndpoint {
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    /**
+     * @param start 起始死信id，不传从头开始
+     * @param count 条数，默认20
+     */
+    @ReadOperation
+    public Result deadLetters(@Nullable String start, @Nullable Integer count) {
+        return voucherOrderService.queryDeadLetters(start, count == null ? 20 : count);
+    }
+
+    /**
+     * @param id 死信id
+     * @return 新的消息id
+     */
+    @WriteOperation
+    public Result replay(@Selector String id) {
+        return voucherOrderService.replayDeadLetter(id);
+    }
+}
@@ -0,0 +1,209 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.Result;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 异步下单的订单状态。
+ * 秒杀脚本成功后记QUEUED，消费线程落库后记CREATED，被拒绝或进死信记FAILED并带原因；
+ * 状态存在 order:status:订单id 的hash里，每次变更在 order:status 频道广播订单id，
+ * 各节点收到后唤醒本地等待这个订单的长轮询请求。
+ * 一批订单的状态在一个流水线里写完，每个订单 HSET + EXPIRE + PUBLISH 不再各自往返。
+ */
+@Slf4j
+@Component
+public class OrderStatusTracker {
+    public static final String QUEUED = "QUEUED";
+    public static final String CREATED = "CREATED";
+    public static final String FAILED = "FAILED";
+    private static final DefaultRedisScript<Long> QUEUED_SCRIPT;
+    static {
+        QUEUED_SCRIPT = new DefaultRedisScript<>();
+        QUEUED_SCRIPT.setLocation(new ClassPathResource("order_status_queued.lua"));
+        QUEUED_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+    /**
+     * 长轮询最长挂起时间，超时返回当前状态，客户端再发起下一次
+     */
+    @Value("${hmdp.seckill.order.status.poll-timeout-ms:30000}")
+    private long pollTimeoutMs;
+
+    /**
+     * 本节点上挂起的长轮询，订单id -> 等待的请求
+     */
+    private final Map<Long, Queue<Waiter>> waiters = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    private void init() {
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            String body = new String(message.getBody(), StandardCharsets.UTF_8);
+            try {
+                Long orderId = Long.valueOf(body);
+                if (waiters.containsKey(orderId)) {
+                    notifyWaiters(orderId, status(orderId));
+                }
+            } catch (Exception e) {
+                log.warn("无法解析订单状态消息 {}", body);
+            }
+        }, new ChannelTopic(ORDER_STATUS_CHANNEL));
+    }
+
+    /**
+     * 秒杀成功进入队列。消费线程可能已经先写了终态，这里只在没有状态时写入
+     */
+    public void queued(Long orderId, Long userId) {
+        stringRedisTemplate.execute(QUEUED_SCRIPT, Collections.singletonList(ORDER_STATUS_KEY + orderId),
+                QUEUED, userId.toString(), String.valueOf(TimeUnit.MINUTES.toSeconds(ORDER_STATUS_TTL)));
+    }
+
+    public void created(Long orderId, Long userId) {
+        update(orderId, userId, CREATED, null);
+    }
+
+    public void failed(Long orderId, Long userId, String reason) {
+        update(orderId, userId, FAILED, reason);
+    }
+
+    /**
+     * 一批订单处理完，一个流水线写完所有状态
+     * @param userIds 订单id -> 用户id
+     * @param reasons 订单id -> 失败原因，不在里面的是下单成功
+     */
+    public void completed(Map<Long, Long> userIds, Map<Long, String> reasons) {
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            userIds.forEach((orderId, userId) -> {
+                String reason = reasons.get(orderId);
+                write(conn, orderId, userId, reason == null ? CREATED : FAILED, reason);
+            });
+            return null;
+        });
+    }
+
+    /**
+     * 死信重放后订单重新排队，覆盖之前的FAILED
+     */
+    public void requeued(Long orderId, Long userId) {
+        update(orderId, userId, QUEUED, null);
+    }
+
+    private void update(Long orderId, Long userId, String status, String reason) {
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            write((StringRedisConnection) connection, orderId, userId, status, reason);
+            return null;
+        });
+    }
+
+    /**
+     * 同一个连接上按顺序执行，广播发出时状态已经写好
+     */
+    private void write(StringRedisConnection conn, Long orderId, Long userId, String status, String reason) {
+        String key = ORDER_STATUS_KEY + orderId;
+        Map<String, String> value = new HashMap<>(4);
+        value.put("status", status);
+        value.put("userId", userId.toString());
+        if (reason != null) {
+            value.put("reason", reason);
+        } else {
+            conn.hDel(key, "reason");
+        }
+        conn.hMSet(key, value);
+        conn.expire(key, TimeUnit.MINUTES.toSeconds(ORDER_STATUS_TTL));
+        conn.publish(ORDER_STATUS_CHANNEL, orderId.toString());
+    }
+
+    /**
+     * 查询订单状态，没有记录返回空map
+     */
+    public Map<Object, Object> status(Long orderId) {
+        return stringRedisTemplate.opsForHash().entries(ORDER_STATUS_KEY + orderId);
+    }
+
+    /**
+     * 长轮询订单状态：已是终态立即返回，否则挂起到状态变更或超时
+     * @param orderId 订单id
+     * @param userId 当前用户，只能查自己的订单
+     */
+    public DeferredResult<Result> poll(Long orderId, Long userId) {
+        DeferredResult<Result> deferred = new DeferredResult<>(pollTimeoutMs);
+        Waiter waiter = new Waiter(userId, deferred);
+        //1.先登记再查状态，查询和通知之间发生的变更也不会漏掉
+        Queue<Waiter> queue = waiters.computeIfAbsent(orderId, k -> new ConcurrentLinkedQueue<>());
+        queue.add(waiter);
+        deferred.onCompletion(() -> removeWaiter(orderId, waiter));
+        //2.超时返回当前状态
+        deferred.onTimeout(() -> waiter.complete(status(orderId)));
+        //3.已经是终态，直接返回
+        Map<Object, Object> status = status(orderId);
+        if (!QUEUED.equals(status.get("status"))) {
+            waiter.complete(status);
+        }
+        return deferred;
+    }
+
+    private void notifyWaiters(Long orderId, Map<Object, Object> status) {
+        Queue<Waiter> queue = waiters.get(orderId);
+        if (queue == null || QUEUED.equals(status.get("status"))) {
+            return;
+        }
+        for (Waiter waiter : queue) {
+            waiter.complete(status);
+        }
+    }
+
+    private void removeWaiter(Long orderId, Waiter waiter) {
+        waiters.computeIfPresent(orderId, (k, queue) -> {
+            queue.remove(waiter);
+            return queue.isEmpty() ? null : queue;
+        });
+    }
+
+    private static class Waiter {
+        private final Long userId;
+        private final DeferredResult<Result> deferred;
+
+        Waiter(Long userId, DeferredResult<Result> deferred) {
+            this.userId = userId;
+            this.deferred = deferred;
+        }
+
+        void complete(Map<Object, Object> status) {
+            //没有记录，或者不是本人的订单，都当作订单不存在
+            if (status.isEmpty() || !userId.toString().equals(status.get("userId"))) {
+                deferred.setResult(Result.fail("订单不存在"));
+                return;
+            }
+            Map<Object, Object> value = new HashMap<>(status);
+            value.remove("userId");
+            deferred.setResult(Result.ok(value));
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.hmdp.utils;
+
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import static com.hmdp.utils.RedisConstants.ORDER_TIMEOUT_KEY;
+import static com.hmdp.utils.RedisConstants.ORDER_TIMEOUT_LEASED_KEY;
+
+/**
+ * 订单超时任务。
+ * 所有任务按到期时间存在redis的zset里，各节点每隔一段时间批量认领horizon之内到期的任务，
+ * 放进本地的时间轮，到期后交给处理线程执行；时间轮每个tick的开销是O(1)，和挂着的任务数无关。
+ * 认领时任务移到租约zset，处理成功后删除；节点挂掉时租约到期，任务回到待处理zset被别的节点认领。
+ */
+@Slf4j
+public class OrderTimeoutScheduler {
+    private static final DefaultRedisScript<List> CLAIM_SCRIPT;
+    static {
+        CLAIM_SCRIPT = new DefaultRedisScript<>();
+        CLAIM_SCRIPT.setLocation(new ClassPathResource("order_timeout_claim.lua"));
+        CLAIM_SCRIPT.setResultType(List.class);
+    }
+    private static final List<String> KEYS = Arrays.asList(ORDER_TIMEOUT_KEY, ORDER_TIMEOUT_LEASED_KEY);
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final long horizonMs;
+    private final long leaseMs;
+    private final int batchSize;
+    private final long pollIntervalMs;
+    /**
+     * 处理到期任务，返回true表示处理完成可以删除，false或异常等租约到期后重试
+     */
+    private final Predicate<String> handler;
+
+    private Timer timer;
+    private ExecutorService workers;
+    private ScheduledExecutorService poller;
+
+    public OrderTimeoutScheduler(StringRedisTemplate stringRedisTemplate, long horizonMs, long leaseMs,
+                                 int batchSize, long pollIntervalMs, Predicate<String> handler) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.horizonMs = horizonMs;
+        this.leaseMs = leaseMs;
+        this.batchSize = batchSize;
+        this.pollIntervalMs = pollIntervalMs;
+        this.handler = handler;
+    }
+
+    public void start() {
+        //100ms一格、512格一圈，超过一圈的任务记圈数，不影响每格的开销
+        timer = new HashedWheelTimer(r -> new Thread(r, "order-timeout-wheel"), 100, TimeUnit.MILLISECONDS, 512);
+        workers = Executors.newFixedThreadPool(2);
+        poller = Executors.newSingleThreadScheduledExecutor();
+        poller.scheduleWithFixedDelay(this::poll, pollIntervalMs, pollIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        poller.shutdownNow();
+        //时间轮里没执行的任务还在租约zset里，租约到期后会被重新认领
+        timer.stop();
+        workers.shutdownNow();
+    }
+
+    /**
+     * 登记一批任务，流水线ZADD
+     * @param members 任务内容
+     * @param deadline 到期时间(毫秒)
+     */
+    public void schedule(List<String> members, long deadline) {
+        if (members.isEmpty()) {
+            return;
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (String member : members) {
+                conn.zAdd(ORDER_TIMEOUT_KEY, deadline, member);
+            }
+            return null;
+        });
+    }
+
+    private void poll() {
+        //这一轮已经认领过的任务，再出现说明租约过期被放回来了，留给下一轮
+        Set<String> claimed = new HashSet<>();
+        try {
+            while (true) {
+                long now = System.currentTimeMillis();
+                List<?> due = stringRedisTemplate.execute(CLAIM_SCRIPT, KEYS,
+                        String.valueOf(now), String.valueOf(horizonMs), String.valueOf(leaseMs), String.valueOf(batchSize));
+                if (due == null || due.isEmpty()) {
+                    return;
+                }
+                boolean repeated = false;
+                for (int i = 0; i < due.size(); i += 2) {
+                    String member = due.get(i).toString();
+                    if (!claimed.add(member)) {
+                        //时间轮里已经有它了，不重复挂
+                        repeated = true;
+                        continue;
+                    }
+                    long deadline = Long.parseLong(due.get(i + 1).toString());
+                    timer.newTimeout(t -> workers.execute(() -> fire(member)),
+                            Math.max(deadline - now, 0), TimeUnit.MILLISECONDS);
+                }
+                //一批没认领满，说明暂时没有更多了；认领到了自己这一轮的任务，说明已经转了一圈
+                if (repeated || due.size() / 2 < batchSize) {
+                    return;
+                }
+            }
+        } catch (Exception e) {
+            log.warn("认领超时任务失败", e);
+        }
+    }
+
+    private void fire(String member) {
+        try {
+            if (handler.test(member)) {
+                stringRedisTemplate.opsForZSet().remove(ORDER_TIMEOUT_LEASED_KEY, member);
+            }
+        } catch (Exception e) {
+            log.error("处理超时任务失败，租约到期后重试 {}", member, e);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.hmdp.utils;
+
+import java.lang.annotation.*;
+
+/**
+ * 接口限流，标在controller方法上，由RateLimitInterceptor在进入controller前检查。
+ * 两级：本地令牌桶挡住单节点上的突发流量，redis滑动窗口限制整个集群的总量；
+ * 同一个方法可以标多个，例如同时按接口和按用户限流。
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+@Documented
+@Repeatable(RateLimit.List.class)
+public @interface RateLimit {
+
+    /**
+     * 限流名，拼进计数key，默认 类名.方法名
+     */
+    String key() default "";
+
+    /**
+     * 按什么维度计数
+     */
+    Type type() default Type.USER;
+
+    /**
+     * 本地令牌桶每秒生成的令牌数，<=0 不启用本地限流
+     */
+    double permitsPerSecond() default 0;
+
+    /**
+     * 本地令牌桶容量，允许的突发请求数
+     */
+    int burst() default 1;
+
+    /**
+     * redis滑动窗口内允许的请求数，<=0 不启用集群限流
+     */
+    int limit() default 0;
+
+    /**
+     * redis滑动窗口长度(秒)
+     */
+    int window() default 1;
+
+    enum Type {
+        /**
+         * 整个接口共用一个计数
+         */
+        ROUTE,
+        /**
+         * 每个登录用户一个计数，未登录按ip
+         */
+        USER,
+        /**
+         * 每个客户端ip一个计数
+         */
+        IP
+    }
+
+    @Target(ElementType.METHOD)
+    @Retention(RetentionPolicy.RUNTIME)
+    @Documented
+    @interface List {
+        RateLimit[] value();
+    }
+}
@@ -0,0 +1,153 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.IdUtil;
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.json.JSONUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.annotation.AnnotatedElementUtils;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.RATE_LIMIT_KEY;
+
+/**
+ * 按@RateLimit限流，先过本地令牌桶，再过redis滑动窗口，任一超限直接返回429。
+ * redis不可用时放行，限流不能把正常请求也挡掉。
+ */
+@Slf4j
+public class RateLimitInterceptor implements HandlerInterceptor {
+    private static final DefaultRedisScript<Long> RATE_LIMIT_SCRIPT;
+    static {
+        RATE_LIMIT_SCRIPT = new DefaultRedisScript<>();
+        RATE_LIMIT_SCRIPT.setLocation(new ClassPathResource("rate_limit.lua"));
+        RATE_LIMIT_SCRIPT.setResultType(Long.class);
+    }
+    private static final RateLimit[] NONE = new RateLimit[0];
+    private static final String TOO_MANY_REQUESTS = JSONUtil.toJsonStr(Result.fail("请求太频繁，请稍后再试"));
+    /**
+     * 本地令牌桶的数量上限，按ip、用户限流时key的个数没有上限
+     */
+    private static final int MAX_BUCKETS = 10000;
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final Map<Method, RateLimit[]> limits = new ConcurrentHashMap<>();
+    /**
+     * 桶在最后一次访问之后过了refillNanos就满了，和新建的等价，到期淘汰；
+     * 超过上限时由caffeine在后台淘汰，被淘汰的桶下次重新从满的开始，还有集群滑动窗口兜底
+     */
+    private final Cache<String, TokenBucket> buckets = Caffeine.newBuilder()
+            .maximumSize(MAX_BUCKETS)
+            .expireAfter(new Expiry<String, TokenBucket>() {
+                @Override
+                public long expireAfterCreate(String key, TokenBucket bucket, long currentTime) {
+                    return bucket.refillNanos();
+                }
+
+                @Override
+                public long expireAfterUpdate(String key, TokenBucket bucket, long currentTime, long currentDuration) {
+                    return bucket.refillNanos();
+                }
+
+                @Override
+                public long expireAfterRead(String key, TokenBucket bucket, long currentTime, long currentDuration) {
+                    return bucket.refillNanos();
+                }
+            })
+            .build();
+
+    public RateLimitInterceptor(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        if (!(handler instanceof HandlerMethod)) {
+            return true;
+        }
+        Method method = ((HandlerMethod) handler).getMethod();
+        RateLimit[] rateLimits = limits.computeIfAbsent(method, this::findLimits);
+        for (RateLimit rateLimit : rateLimits) {
+            String key = key(rateLimit, method, request);
+            //1.本地令牌桶
+            if (rateLimit.permitsPerSecond() > 0 && !localBucket(key, rateLimit).tryAcquire()) {
+                return reject(response, key);
+            }
+            //2.集群滑动窗口
+            if (rateLimit.limit() > 0 && !clusterAcquire(key, rateLimit)) {
+                return reject(response, key);
+            }
+        }
+        return true;
+    }
+
+    private RateLimit[] findLimits(Method method) {
+        Set<RateLimit> found = AnnotatedElementUtils.findMergedRepeatableAnnotations(method, RateLimit.class);
+        return found.isEmpty() ? NONE : found.toArray(NONE);
+    }
+
+    private String key(RateLimit rateLimit, Method method, HttpServletRequest request) {
+        String name = StrUtil.isBlank(rateLimit.key())
+                ? method.getDeclaringClass().getSimpleName() + "." + method.getName() : rateLimit.key();
+        switch (rateLimit.type()) {
+            case ROUTE:
+                return name;
+            case USER:
+                UserDTO user = UserHolder.getUser();
+                if (user != null) {
+                    return name + ":user:" + user.getId();
+                }
+                //未登录按ip
+            default:
+                return name + ":ip:" + request.getRemoteAddr();
+        }
+    }
+
+    private TokenBucket localBucket(String key, RateLimit rateLimit) {
+        TokenBucket bucket = buckets.getIfPresent(key);
+        if (bucket != null) {
+            return bucket;
+        }
+        //创建桶的lambda要捕获rateLimit，放在未命中的分支里
+        return buckets.get(key, k -> new TokenBucket(rateLimit.permitsPerSecond(), rateLimit.burst()));
+    }
+
+    private boolean clusterAcquire(String key, RateLimit rateLimit) {
+        try {
+            Long result = stringRedisTemplate.execute(
+                    RATE_LIMIT_SCRIPT,
+                    Collections.singletonList(RATE_LIMIT_KEY + key),
+                    String.valueOf(rateLimit.limit()), String.valueOf(rateLimit.window() * 1000000L),
+                    IdUtil.fastSimpleUUID()
+            );
+            return result == null || result == 1L;
+        } catch (Exception e) {
+            log.warn("集群限流失败，放行 {}", key, e);
+            return true;
+        }
+    }
+
+    private boolean reject(HttpServletResponse response, String key) throws Exception {
+        log.debug("请求被限流 {}", key);
+        response.setStatus(429);
+        response.setContentType("application/json;charset=UTF-8");
+        response.getOutputStream().write(TOO_MANY_REQUESTS.getBytes(StandardCharsets.UTF_8));
+        return false;
+    }
+}
@@ -0,0 +1,197 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 基于redis bitmap的布隆过滤器，本地有一份镜像。
+ * 先查本地，命中就是可能存在；不命中再到redis确认，redis里也不命中才判定不存在，
+ * 别的节点刚新增、广播还没到(或者丢了)的id不会被误拦。不存在的id本来就少，多一次GETBIT的流水线可以接受。
+ * 别的节点新增的id通过广播补到本地(addLocal)，再定时重新加载一次兜底漏掉的广播，减少到redis确认的次数。
+ * redis里还没构建好时一律返回存在，退化成不过滤。
+ */
+public class RedisBloomFilter {
+    private final String key;
+    private final long bits;
+    private final int hashes;
+    private final StringRedisTemplate stringRedisTemplate;
+    private final AtomicLongArray local;
+    private volatile boolean ready;
+    /**
+     * redis里的位数组已经构建完成，本地加载完之前可以拿来确认
+     */
+    private volatile boolean built;
+
+    /**
+     * @param expectedInsertions 预计元素个数
+     * @param fpp 期望误判率
+     */
+    public RedisBloomFilter(String name, long expectedInsertions, double fpp, StringRedisTemplate stringRedisTemplate) {
+        //m = -n*ln(p)/(ln2)^2，k = m/n*ln2
+        long m = (long) Math.ceil(-expectedInsertions * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        //按64位取整，redis bitmap最大2^32位
+        this.bits = Math.min(Math.max(64, (m + 63) / 64 * 64), 1L << 32);
+        this.hashes = Math.max(1, (int) Math.round((double) bits / expectedInsertions * Math.log(2)));
+        //参数写进key，改了配置自动换一个新的过滤器，不会和旧的位数组混用
+        this.key = RedisConstants.BLOOM_KEY + name + ":" + bits + "x" + hashes;
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.local = new AtomicLongArray((int) (bits / 64));
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    public void markBuilt() {
+        built = true;
+    }
+
+    public boolean mightContain(Long id) {
+        long[] positions = positions(id);
+        if (containsLocal(positions)) {
+            return true;
+        }
+        if (!built) {
+            return true;
+        }
+        //本地不命中，到redis确认
+        List<Object> results;
+        try {
+            results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+                for (long position : positions) {
+                    connection.getBit(rawKey, position);
+                }
+                return null;
+            });
+        } catch (Exception e) {
+            //redis不可用时不拦截，交给后面的缓存和数据库
+            return true;
+        }
+        for (Object result : results) {
+            if (!Boolean.TRUE.equals(result)) {
+                return false;
+            }
+        }
+        setLocal(positions);
+        return true;
+    }
+
+    public void add(Long id) {
+        long[] positions = positions(id);
+        setLocal(positions);
+        setBits(key, positions);
+    }
+
+    /**
+     * 别的节点新增的id，只补到本地镜像，redis里已经写过了
+     */
+    public void addLocal(Long id) {
+        setLocal(positions(id));
+    }
+
+    /**
+     * 批量写入指定的key，启动构建时写临时key
+     */
+    public void addAll(String targetKey, Collection<Long> ids) {
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            byte[] rawKey = targetKey.getBytes(StandardCharsets.UTF_8);
+            for (Long id : ids) {
+                for (long position : positions(id)) {
+                    connection.setBit(rawKey, position, true);
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 把redis里的位数组合并进本地镜像，之后开始过滤；定时重复调用，补上漏掉的广播
+     */
+    public void loadLocal() {
+        byte[] raw = stringRedisTemplate.execute((RedisCallback<byte[]>) connection ->
+                connection.get(key.getBytes(StandardCharsets.UTF_8)));
+        if (raw != null) {
+            //redis的第0位是第一个字节的最高位
+            for (int i = 0; i < raw.length; i++) {
+                if (raw[i] == 0) {
+                    continue;
+                }
+                for (int b = 0; b < 8; b++) {
+                    if ((raw[i] & (0x80 >>> b)) != 0) {
+                        setLocal((long) i * 8 + b);
+                    }
+                }
+            }
+        }
+        ready = true;
+    }
+
+    /**
+     * 合并启动时构建的临时key，和构建期间新增的id取并集，不会丢
+     */
+    public void merge(String builtKey) {
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+            connection.bitOp(RedisStringCommands.BitOperation.OR, rawKey,
+                    rawKey, builtKey.getBytes(StandardCharsets.UTF_8));
+            return null;
+        });
+        stringRedisTemplate.delete(builtKey);
+    }
+
+    /**
+     * 双重哈希：murmur3 128位的高低两半 h1 + i*h2 得到k个位置
+     */
+    private long[] positions(Long id) {
+        long[] hash = MurmurHash.hash128(String.valueOf(id));
+        long[] positions = new long[hashes];
+        long combined = hash[0];
+        for (int i = 0; i < hashes; i++) {
+            positions[i] = (combined & Long.MAX_VALUE) % bits;
+            combined += hash[1];
+        }
+        return positions;
+    }
+
+    private void setBits(String targetKey, long[] positions) {
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            byte[] rawKey = targetKey.getBytes(StandardCharsets.UTF_8);
+            for (long position : positions) {
+                connection.setBit(rawKey, position, true);
+            }
+            return null;
+        });
+    }
+
+    private boolean containsLocal(long[] positions) {
+        for (long position : positions) {
+            if ((local.get((int) (position >>> 6)) & (1L << (position & 63))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void setLocal(long... positions) {
+        for (long position : positions) {
+            int index = (int) (position >>> 6);
+            long mask = 1L << (position & 63);
+            long word;
+            do {
+                word = local.get(index);
+            } while ((word & mask) == 0 && !local.compareAndSet(index, word, word | mask));
+        }
+    }
+}
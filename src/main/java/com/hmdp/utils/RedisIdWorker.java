@@ -1,19 +1,48 @@
 package com.hmdp.utils;
 
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+@Slf4j
 @Component
 public class RedisIdWorker {
     @Resource
     private StringRedisTemplate stringRedisTemplate;
     private static final long BEGIN_TIMESTAMP = 1640995200L;
     private static final int COUNT_BITS = 32;
+    private static final long SECONDS_PER_DAY = 24 * 60 * 60L;
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+    /**
+     * 号段大小：每次INCRBY预留这么多个序列号，在本地分配；0表示关闭，每个id都INCR一次。
+     * 节点重启时没用完的号段作废，序列号会有空洞
+     */
+    @Value("${hmdp.id.segment-size:1000}")
+    private int segmentSize;
+    /**
+     * 每个业务前缀的号段缓冲
+     */
+    private final Map<String, SegmentBuffer> buffers = new ConcurrentHashMap<>();
+    private final ExecutorService SEGMENT_PREFETCH_EXECUTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "id-segment-prefetch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     public long nextId(String keyPrefix){
         //时间戳：1640995200
         //1.生成时间戳
@@ -21,14 +50,125 @@ public class RedisIdWorker {
         long nowSecond = localDateTime.toEpochSecond(ZoneOffset.UTC);
         long timestamp = nowSecond - BEGIN_TIMESTAMP;
         //2.生成序列号
-        //获取当前日期精确到天
-        String date = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
-        Long count = stringRedisTemplate.opsForValue().increment("icr" + keyPrefix + ":" + date);
+        long count;
+        if (segmentSize > 0) {
+            //2.1.号段模式，序列号按天划分，号段也只在当天有效
+            count = nextCount(keyPrefix, nowSecond / SECONDS_PER_DAY);
+        } else {
+            //获取当前日期精确到天
+            String date = localDateTime.format(DATE_FORMATTER);
+            count = stringRedisTemplate.opsForValue().increment("icr" + keyPrefix + ":" + date);
+        }
         //3.拼接并返回
 
         return timestamp << COUNT_BITS | count;
     }
 
+    @PreDestroy
+    private void destroy() {
+        SEGMENT_PREFETCH_EXECUTOR.shutdownNow();
+    }
+
+    /**
+     * 从本地号段取序列号，快路径只有一次CAS
+     */
+    private long nextCount(String keyPrefix, long day) {
+        SegmentBuffer buffer = buffers.computeIfAbsent(keyPrefix, SegmentBuffer::new);
+        while (true) {
+            Segment segment = buffer.current;
+            if (segment != null && segment.day == day) {
+                long count = segment.cursor.getAndIncrement();
+                if (count <= segment.end) {
+                    //用掉20%时异步预取下一段，只有恰好拿到这个号的线程会触发
+                    if (count == segment.prefetchAt) {
+                        prefetch(buffer, day);
+                    }
+                    return count;
+                }
+            }
+            //号段用完或者跨天了，切换号段
+            switchSegment(buffer, segment, day);
+        }
+    }
+
+    private void prefetch(SegmentBuffer buffer, long day) {
+        if (!buffer.loading.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            SEGMENT_PREFETCH_EXECUTOR.execute(() -> {
+                try {
+                    buffer.next = allocate(buffer.keyPrefix, day);
+                } catch (Exception e) {
+                    //预取失败不要紧，用完时同步再取
+                    log.warn("预取号段失败 {}", buffer.keyPrefix, e);
+                } finally {
+                    buffer.loading.set(false);
+                }
+            });
+        } catch (Exception e) {
+            buffer.loading.set(false);
+        }
+    }
+
+    /**
+     * 慢路径：优先换上预取好的号段，没有就同步向redis申请；加锁避免多个线程同时申请
+     */
+    private void switchSegment(SegmentBuffer buffer, Segment exhausted, long day) {
+        synchronized (buffer) {
+            if (buffer.current != exhausted) {
+                //别的线程已经换好了
+                return;
+            }
+            Segment next = buffer.next;
+            buffer.next = null;
+            //预取的号段属于别的日期就丢掉，否则跨天后序列号会和新一天的重复；
+            //预取慢了，期间已经同步申请过更大的号段，这时拿到的号段比当前的小，也要丢掉，否则id会倒退
+            boolean usable = next != null && next.day == day
+                    && (exhausted == null || exhausted.day != day || next.start > exhausted.end);
+            buffer.current = usable ? next : allocate(buffer.keyPrefix, day);
+        }
+    }
+
+    /**
+     * INCRBY icr业务:yyyy:MM:dd N，拿到 (返回值-N, 返回值] 这一段
+     */
+    private Segment allocate(String keyPrefix, long day) {
+        String date = LocalDate.ofEpochDay(day).format(DATE_FORMATTER);
+        Long end = stringRedisTemplate.opsForValue().increment("icr" + keyPrefix + ":" + date, segmentSize);
+        if (end == null) {
+            throw new IllegalStateException("申请号段失败 " + keyPrefix);
+        }
+        return new Segment(day, end - segmentSize + 1, end);
+    }
+
+    private static class SegmentBuffer {
+        private final String keyPrefix;
+        private volatile Segment current;
+        private volatile Segment next;
+        private final AtomicBoolean loading = new AtomicBoolean();
+
+        SegmentBuffer(String keyPrefix) {
+            this.keyPrefix = keyPrefix;
+        }
+    }
+
+    private static class Segment {
+        private final long day;
+        private final long start;
+        private final long end;
+        private final long prefetchAt;
+        private final AtomicLong cursor;
+
+        Segment(long day, long start, long end) {
+            this.day = day;
+            this.start = start;
+            this.end = end;
+            this.prefetchAt = start + (end - start + 1) / 5;
+            this.cursor = new AtomicLong(start);
+        }
+    }
+
     public static void main(String[] args) {
         LocalDateTime localDateTime = LocalDateTime.of(2022, 1, 1, 0, 0, 0);
 
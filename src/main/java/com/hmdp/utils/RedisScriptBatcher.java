@@ -0,0 +1,202 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.RedisPipelineException;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 把并发的同一个脚本调用攒成一批，用一次流水线EVALSHA发出去，每个调用拿回自己的结果。
+ * 分发线程阻塞等到第一个调用后，最多再等一个很短的窗口，把这段时间里到达的调用一起发；
+ * 启动时预先SCRIPT LOAD，正常情况下不会走EVAL；个别调用遇到NOSCRIPT(redis重启、主从切换)
+ * 时重新加载并单独重试，别的错误原样交给调用方。
+ * 队列有界，满了直接拒绝；调用方等待超时的时候，还没发出去的调用会被放弃，不会再执行，
+ * 已经发出去的调用结果很快会回来(受redis命令超时约束)，继续等它，不能丢掉已经生效的结果。
+ */
+@Slf4j
+public class RedisScriptBatcher {
+    private final StringRedisTemplate stringRedisTemplate;
+    private final DefaultRedisScript<Long> script;
+    private final long windowNanos;
+    private final int maxBatch;
+    private final int dispatchers;
+    private final BlockingQueue<Call> queue;
+    private ExecutorService DISPATCH_EXECUTOR;
+
+    /**
+     * @param windowMicros 攒批窗口(微秒)
+     * @param maxBatch 一批最多多少个调用
+     * @param dispatchers 分发线程数，多个批可以同时在路上
+     * @param queueCapacity 排队等待发出的调用上限
+     */
+    public RedisScriptBatcher(StringRedisTemplate stringRedisTemplate, DefaultRedisScript<Long> script,
+                              long windowMicros, int maxBatch, int dispatchers, int queueCapacity) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.script = script;
+        this.windowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+        this.maxBatch = maxBatch;
+        this.dispatchers = dispatchers;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+    }
+
+    public void start() {
+        load();
+        DISPATCH_EXECUTOR = Executors.newFixedThreadPool(dispatchers);
+        for (int i = 0; i < dispatchers; i++) {
+            DISPATCH_EXECUTOR.submit(this::dispatch);
+        }
+    }
+
+    public void stop() {
+        DISPATCH_EXECUTOR.shutdownNow();
+    }
+
+    /**
+     * 提交一次脚本调用并等待结果
+     * @param timeoutMillis 最长等待时间，超时时调用还没发出去就放弃
+     * @throws RejectedExecutionException 队列已满
+     * @throws TimeoutException 超时，调用已放弃，不会执行
+     */
+    public Long execute(List<String> keys, long timeoutMillis, String... args)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        Call call = new Call(keys, args);
+        if (!queue.offer(call)) {
+            throw new RejectedExecutionException("脚本批处理队列已满");
+        }
+        try {
+            return call.future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            if (call.claimed.compareAndSet(false, true)) {
+                //还在队列里，分发线程会跳过它
+                throw e;
+            }
+            //已经发出去了，脚本可能已经生效，等结果回来
+            return call.future.get();
+        }
+    }
+
+    private void load() {
+        String sha = stringRedisTemplate.execute((RedisCallback<String>) connection ->
+                ((StringRedisConnection) connection).scriptLoad(script.getScriptAsString()));
+        log.debug("脚本已预加载 {}", sha);
+    }
+
+    private void dispatch() {
+        List<Call> batch = new ArrayList<>(maxBatch);
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                //1.阻塞等第一个调用，再在窗口内尽量攒满
+                batch.add(queue.take());
+                long deadline = System.nanoTime() + windowNanos;
+                while (batch.size() < maxBatch) {
+                    queue.drainTo(batch, maxBatch - batch.size());
+                    long remaining = deadline - System.nanoTime();
+                    if (batch.size() >= maxBatch || remaining <= 0) {
+                        break;
+                    }
+                    Call call = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (call == null) {
+                        break;
+                    }
+                    batch.add(call);
+                }
+                //2.放弃超时的调用，剩下的一次流水线发出去
+                batch.removeIf(call -> !call.claimed.compareAndSet(false, true));
+                if (!batch.isEmpty()) {
+                    executeBatch(batch);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                for (Call call : batch) {
+                    call.future.completeExceptionally(e);
+                }
+            } finally {
+                batch.clear();
+            }
+        }
+        //停止时没发出去的调用都失败掉，不让调用方一直等
+        Call call;
+        while ((call = queue.poll()) != null) {
+            call.future.completeExceptionally(new IllegalStateException("脚本批处理已停止"));
+        }
+    }
+
+    private void executeBatch(List<Call> batch) {
+        List<Object> results;
+        try {
+            results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                for (Call call : batch) {
+                    conn.evalSha(script.getSha1(), ReturnType.INTEGER, call.keys.size(), call.keysAndArgs);
+                }
+                return null;
+            });
+        } catch (RedisPipelineException e) {
+            //部分调用失败，结果列表里对应位置是异常
+            results = e.getPipelineResult();
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            Call call = batch.get(i);
+            Object result = i < results.size() ? results.get(i) : null;
+            if (result instanceof Long) {
+                call.future.complete((Long) result);
+            } else if (result instanceof Exception && isNoScript((Exception) result)) {
+                retry(call);
+            } else if (result instanceof Exception) {
+                call.future.completeExceptionally((Exception) result);
+            } else {
+                call.future.completeExceptionally(new IllegalStateException("脚本返回了意外的结果 " + result));
+            }
+        }
+    }
+
+    /**
+     * 脚本缓存丢了：单独用template执行，它会先EVALSHA、失败后EVAL，顺便把脚本加载回去
+     */
+    private void retry(Call call) {
+        try {
+            call.future.complete(stringRedisTemplate.execute(script, call.keys, (Object[]) call.args));
+        } catch (Exception e) {
+            call.future.completeExceptionally(e);
+        }
+    }
+
+    private static boolean isNoScript(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t.getMessage() != null && t.getMessage().contains("NOSCRIPT")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static class Call {
+        private final List<String> keys;
+        private final String[] args;
+        private final String[] keysAndArgs;
+        private final CompletableFuture<Long> future = new CompletableFuture<>();
+        /**
+         * 分发线程发出前和调用方超时放弃时抢这个标记，谁先拿到谁说了算
+         */
+        private final AtomicBoolean claimed = new AtomicBoolean();
+
+        Call(List<String> keys, String[] args) {
+            this.keys = keys;
+            this.args = args;
+            this.keysAndArgs = new String[keys.size() + args.length];
+            for (int i = 0; i < keys.size(); i++) {
+                keysAndArgs[i] = keys.get(i);
+            }
+            System.arraycopy(args, 0, keysAndArgs, keys.size(), args.length);
+        }
+    }
+}
@@ -6,7 +6,7 @@ import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.User;
 import org.springframework.beans.BeanUtils;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.AsyncHandlerInterceptor;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -14,7 +14,7 @@ import javax.servlet.http.HttpSession;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
-public class RefreshTokenIntercepter implements HandlerInterceptor {
+public class RefreshTokenIntercepter implements AsyncHandlerInterceptor {
     private StringRedisTemplate stringRedisTemplate;
 
     public RefreshTokenIntercepter(StringRedisTemplate stringRedisTemplate) {
@@ -51,4 +51,12 @@ public class RefreshTokenIntercepter implements HandlerInterceptor {
     public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex) throws Exception {
         UserHolder.removeUser();
     }
+
+    /**
+     * 长轮询等异步请求不会在当前线程走afterCompletion，这里也要清掉
+     */
+    @Override
+    public void afterConcurrentHandlingStarted(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        UserHolder.removeUser();
+    }
 }
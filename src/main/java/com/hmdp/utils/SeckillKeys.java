@@ -0,0 +1,91 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀相关的redis key。
+ * 一张券的库存拆成若干个桶：seckill:stock:{券id:桶号}，
+ * 用户按 用户id % 桶数 落到自己的主桶，购买记录 seckill:order:{券id:桶号} 和订单流 stream.orders:{券id:桶号} 也按桶拆开，
+ * 所以一人一单只需要查主桶。每个桶单独一个hash tag {券id:桶号}，redis集群下各桶分散在不同的slot，
+ * 秒杀脚本只操作主桶这一个slot；主桶库存空了由调用方从其它桶挪库存过来。
+ */
+public class SeckillKeys {
+
+    /**
+     * 券的秒杀信息hash，字段：stock 初始库存，buckets 桶数，begin/end 开始结束时间(epoch秒)
+     */
+    public static String voucherKey(Long voucherId) {
+        return SECKILL_VOUCHER_KEY + tag(voucherId);
+    }
+
+    public static String stockKey(Long voucherId, int bucket) {
+        return SECKILL_STOCK_KEY + tag(voucherId, bucket);
+    }
+
+    public static String orderKey(Long voucherId, int bucket) {
+        return SECKILL_ORDER_KEY + tag(voucherId, bucket);
+    }
+
+    /**
+     * 券的订单流分区 stream.orders:{券id:桶号}，每个库存桶一个分区，和桶的其它key在同一个slot
+     */
+    public static String streamKey(Long voucherId, int bucket) {
+        return STREAM_ORDERS_KEY + tag(voucherId, bucket);
+    }
+
+    /**
+     * 按hash tag把key分组，同一组的key在集群下属于同一个slot，保持原有顺序
+     */
+    public static List<List<String>> groupByHashTag(List<String> keys) {
+        Map<String, List<String>> groups = new LinkedHashMap<>();
+        for (String key : keys) {
+            groups.computeIfAbsent(StrUtil.subBetween(key, "{", "}"), k -> new ArrayList<>()).add(key);
+        }
+        return new ArrayList<>(groups.values());
+    }
+
+    private static String tag(Long voucherId) {
+        return "{" + voucherId + "}";
+    }
+
+    private static String tag(Long voucherId, int bucket) {
+        return "{" + voucherId + ":" + bucket + "}";
+    }
+
+    /**
+     * 用户的主桶，购买记录和订单都落在主桶
+     */
+    public static int homeBucket(Long userId, int buckets) {
+        return (int) Math.floorMod(userId, (long) buckets);
+    }
+
+    /**
+     * 对账状态hash，字段是用户id，值是 状态:时间戳
+     */
+    public static String reconcileKey(Long voucherId) {
+        return SECKILL_RECONCILE_KEY + tag(voucherId);
+    }
+
+    /**
+     * 把库存尽量平均地分到各个桶，前 stock % buckets 个桶各多1个
+     */
+    public static int bucketStock(int stock, int buckets, int bucket) {
+        return stock / buckets + (bucket < stock % buckets ? 1 : 0);
+    }
+
+    /**
+     * 秒杀时间转成epoch秒，和脚本里redis TIME的口径一致
+     */
+    public static long epochSecond(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toEpochSecond();
+    }
+}
@@ -0,0 +1,289 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.*;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀的redis和mysql对账。
+ * 每张券分页HSCAN各桶的购买记录(用户id -> 订单id)，和订单表按 user_id IN 比对；再按主键分页扫订单表，反查购买记录。
+ * redis有、库里没有的用户先记下来，超过宽限期仍没有就用原订单id重新投递一次，客户端轮询的还是同一个订单；
+ * 再超过宽限期还没有，说明订单建不出来，归还redis里的名额和库存，订单状态记为失败。
+ * 消费跟不上时订单还在流里排队，不是丢了：主桶订单流里最早一条没投递的消息不晚于发现(或重新投递)的时间，
+ * 就不重新投递也不归还，等消费者追上来，否则同一份库存会在redis里被卖两次。
+ * 对账状态存在 seckill:reconcile:{券id}，节点之间用分布式锁保证同一时间只有一个在跑。
+ */
+@Slf4j
+@Component
+public class SeckillReconciler {
+    private static final String SEEN = "seen";
+    private static final String REQUEUED = "requeued";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedissonClient redissonClient;
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+    @Resource
+    private OrderStatusTracker orderStatusTracker;
+    @Resource
+    private SeckillRollback seckillRollback;
+
+    /**
+     * 每页HSCAN的数量，也是每条IN查询的最大长度
+     */
+    @Value("${hmdp.seckill.reconcile.page-size:500}")
+    private int pageSize;
+    /**
+     * 宽限期，要比消息从投递到进死信的最长时间还长，正常处理中的订单不会被误判
+     */
+    @Value("${hmdp.seckill.reconcile.grace-ms:300000}")
+    private long graceMs;
+
+    @Scheduled(initialDelayString = "${hmdp.seckill.reconcile.interval-ms:60000}",
+            fixedDelayString = "${hmdp.seckill.reconcile.interval-ms:60000}")
+    public void reconcile() {
+        RLock lock = redissonClient.getLock(LOCK_SECKILL_RECONCILE_KEY);
+        //别的节点正在对账
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            Set<String> members = stringRedisTemplate.opsForSet().members(STREAM_ORDERS_VOUCHERS_KEY);
+            if (members == null) {
+                return;
+            }
+            for (String member : members) {
+                try {
+                    reconcile(Long.valueOf(member));
+                } catch (Exception e) {
+                    log.error("秒杀对账失败 {}", member, e);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void reconcile(Long voucherId) {
+        Map<Object, Object> info = stringRedisTemplate.opsForHash().entries(SeckillKeys.voucherKey(voucherId));
+        if (info.isEmpty()) {
+            return;
+        }
+        int buckets = Integer.parseInt(info.get("buckets").toString());
+        int initialStock = Integer.parseInt(info.get("stock").toString());
+        //1.redis -> mysql：购买记录里有、订单表没有的用户，连同原订单id
+        Map<Long, Long> missing = new HashMap<>();
+        long buyers = 0;
+        for (int b = 0; b < buckets; b++) {
+            Map<Long, Long> page = new HashMap<>(pageSize * 2);
+            try (Cursor<Map.Entry<Object, Object>> cursor = stringRedisTemplate.opsForHash().scan(
+                    SeckillKeys.orderKey(voucherId, b), ScanOptions.scanOptions().count(pageSize).build())) {
+                while (cursor.hasNext()) {
+                    Map.Entry<Object, Object> entry = cursor.next();
+                    page.put(Long.valueOf(entry.getKey().toString()), Long.valueOf(entry.getValue().toString()));
+                    buyers++;
+                    if (page.size() >= pageSize) {
+                        missing.putAll(findMissing(voucherId, page));
+                        page.clear();
+                    }
+                }
+            }
+            if (!page.isEmpty()) {
+                missing.putAll(findMissing(voucherId, page));
+            }
+        }
+        //2.mysql -> redis：订单表有、购买记录没有的用户，补回购买记录防止重复下单；已取消的订单不算
+        long orders = 0;
+        long lost = 0;
+        long lastId = 0;
+        while (true) {
+            List<VoucherOrder> list = voucherOrderService.query().select("id", "user_id")
+                    .eq("voucher_id", voucherId).gt("id", lastId).isNotNull("active")
+                    .orderByAsc("id").last("limit " + pageSize).list();
+            if (list.isEmpty()) {
+                break;
+            }
+            orders += list.size();
+            lost += restoreBuyers(voucherId, buckets, list);
+            lastId = list.get(list.size() - 1).getId();
+        }
+        //3.处理缺订单的用户
+        handleMissing(voucherId, buckets, missing);
+        //4.库存对比：redis卖出数应等于购买人数，mysql卖出数应等于订单数
+        //各桶在不同的slot，逐个GET；正在从一个桶挪到另一个桶的库存会让这次对比短暂不一致
+        long redisStock = 0;
+        for (int b = 0; b < buckets; b++) {
+            String stock = stringRedisTemplate.opsForValue().get(SeckillKeys.stockKey(voucherId, b));
+            redisStock += stock == null ? 0 : Long.parseLong(stock);
+        }
+        SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
+        long dbStock = voucher == null ? initialStock : voucher.getStock();
+        long redisSold = initialStock - redisStock;
+        long dbSold = initialStock - dbStock;
+        if (!missing.isEmpty() || lost > 0 || redisSold != buyers || dbSold != orders) {
+            log.warn("秒杀对账不一致 voucher={} redis卖出={} 购买人数={} 缺订单={} mysql卖出={} 订单数={} 缺购买记录={}",
+                    voucherId, redisSold, buyers, missing.size(), dbSold, orders, lost);
+        } else {
+            log.debug("秒杀对账一致 voucher={} 卖出={}", voucherId, buyers);
+        }
+    }
+
+    /**
+     * 一页购买记录里没有订单的
+     * @param buyers 用户id -> 订单id
+     */
+    private Map<Long, Long> findMissing(Long voucherId, Map<Long, Long> buyers) {
+        Map<Long, Long> missing = new HashMap<>(buyers);
+        for (VoucherOrder order : voucherOrderService.query().select("user_id")
+                .eq("voucher_id", voucherId).in("user_id", buyers.keySet()).isNotNull("active").list()) {
+            missing.remove(order.getUserId());
+        }
+        return missing;
+    }
+
+    /**
+     * 流水线批量HEXISTS，把丢失的购买记录补回去
+     * @return 补回的数量
+     */
+    private long restoreBuyers(Long voucherId, int buckets, List<VoucherOrder> orders) {
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (VoucherOrder order : orders) {
+                conn.hExists(SeckillKeys.orderKey(voucherId, SeckillKeys.homeBucket(order.getUserId(), buckets)),
+                        order.getUserId().toString());
+            }
+            return null;
+        });
+        long lost = 0;
+        for (int i = 0; i < orders.size(); i++) {
+            if (Boolean.TRUE.equals(results.get(i))) {
+                continue;
+            }
+            VoucherOrder order = orders.get(i);
+            stringRedisTemplate.opsForHash().putIfAbsent(
+                    SeckillKeys.orderKey(voucherId, SeckillKeys.homeBucket(order.getUserId(), buckets)),
+                    order.getUserId().toString(), order.getId().toString());
+            lost++;
+        }
+        return lost;
+    }
+
+    /**
+     * 缺订单的用户：第一次发现先记下；过了宽限期重新投递；再过宽限期归还名额
+     */
+    private void handleMissing(Long voucherId, int buckets, Map<Long, Long> missing) {
+        String reconcileKey = SeckillKeys.reconcileKey(voucherId);
+        Map<Object, Object> states = stringRedisTemplate.opsForHash().entries(reconcileKey);
+        long now = System.currentTimeMillis();
+        //每个桶的订单流里最早一条没投递的消息的时间，这一轮只查一次
+        Map<Integer, Long> oldestUndelivered = new HashMap<>();
+        for (Map.Entry<Long, Long> entry : missing.entrySet()) {
+            Long userId = entry.getKey();
+            Long orderId = entry.getValue();
+            String field = userId.toString();
+            Object state = states.get(field);
+            if (state == null) {
+                stringRedisTemplate.opsForHash().put(reconcileKey, field, SEEN + ":" + now);
+                continue;
+            }
+            String[] parts = state.toString().split(":");
+            long since = Long.parseLong(parts[1]);
+            if (now - since < graceMs) {
+                continue;
+            }
+            int home = SeckillKeys.homeBucket(userId, buckets);
+            if (oldestUndelivered.computeIfAbsent(home, b -> oldestUndelivered(SeckillKeys.streamKey(voucherId, b))) <= since) {
+                //订单还在流里排队，消费者没追上来
+                log.debug("券{}桶{}的订单流积压，暂不处理用户{}", voucherId, home, userId);
+                continue;
+            }
+            if (SEEN.equals(parts[0])) {
+                requeue(voucherId, buckets, userId, orderId);
+                stringRedisTemplate.opsForHash().put(reconcileKey, field, REQUEUED + ":" + now);
+            } else {
+                giveBack(voucherId, buckets, userId, orderId);
+                stringRedisTemplate.opsForHash().delete(reconcileKey, field);
+            }
+        }
+        //已经对上的用户清掉状态
+        for (Object field : states.keySet()) {
+            if (!missing.containsKey(Long.valueOf(field.toString()))) {
+                stringRedisTemplate.opsForHash().delete(reconcileKey, field);
+            }
+        }
+    }
+
+    /**
+     * 消费者组里最早一条还没投递的消息的时间(毫秒)，没有积压返回Long.MAX_VALUE
+     */
+    private long oldestUndelivered(String stream) {
+        if (!Boolean.TRUE.equals(stringRedisTemplate.hasKey(stream))) {
+            return Long.MAX_VALUE;
+        }
+        StreamInfo.XInfoGroups groups = stringRedisTemplate.opsForStream().groups(stream);
+        for (int i = 0; i < groups.size(); i++) {
+            StreamInfo.XInfoGroup group = groups.get(i);
+            if (!STREAM_ORDERS_GROUP.equals(group.groupName())) {
+                continue;
+            }
+            RecordId lastDelivered = RecordId.of(group.lastDeliveredId());
+            //last-delivered-id的下一个id开始，第一条就是最早没投递的
+            RecordId next = RecordId.of(lastDelivered.getTimestamp(), lastDelivered.getSequence() + 1);
+            List<MapRecord<String, Object, Object>> undelivered = stringRedisTemplate.opsForStream().range(stream,
+                    Range.rightUnbounded(Range.Bound.inclusive(next.getValue())),
+                    RedisZSetCommands.Limit.limit().count(1));
+            return undelivered == null || undelivered.isEmpty()
+                    ? Long.MAX_VALUE : undelivered.get(0).getId().getTimestamp();
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * 用购买记录里的原订单id重新投递，客户端还在轮询这个id；订单表的主键和唯一索引保证不会重复下单
+     */
+    private void requeue(Long voucherId, int buckets, Long userId, Long orderId) {
+        Map<String, String> order = new LinkedHashMap<>();
+        order.put("userId", userId.toString());
+        order.put("voucherId", voucherId.toString());
+        order.put("id", orderId.toString());
+        int home = SeckillKeys.homeBucket(userId, buckets);
+        order.put("bucket", String.valueOf(home));
+        stringRedisTemplate.opsForStream().add(SeckillKeys.streamKey(voucherId, home), order);
+        //之前可能因为进了死信已经是FAILED，重新排队
+        orderStatusTracker.requeued(orderId, userId);
+        log.warn("用户{}在券{}上缺少订单{}，已重新投递", userId, voucherId, orderId);
+    }
+
+    private void giveBack(Long voucherId, int buckets, Long userId, Long orderId) {
+        if (seckillRollback.giveBack(voucherId, buckets, userId, orderId)) {
+            orderStatusTracker.failed(orderId, userId, "下单失败，名额已归还");
+            log.warn("用户{}在券{}上重新投递后仍无订单{}，已归还库存", userId, voucherId, orderId);
+        }
+    }
+}
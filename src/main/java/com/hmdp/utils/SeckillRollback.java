@@ -0,0 +1,46 @@
+package com.hmdp.utils;
+
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.Arrays;
+
+/**
+ * 归还一个订单在redis里占用的秒杀名额：移出购买记录并加回主桶库存，然后解除售罄。
+ * 脚本确认购买记录还指向这个订单才归还，重复调用只会归还一次，用户已经重新买到的新订单也不会被误删。
+ */
+@Component
+public class SeckillRollback {
+    private static final DefaultRedisScript<Long> ROLLBACK_SCRIPT;
+    static {
+        ROLLBACK_SCRIPT = new DefaultRedisScript<>();
+        ROLLBACK_SCRIPT.setLocation(new ClassPathResource("seckill_rollback.lua"));
+        ROLLBACK_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SoldOutRegistry soldOutRegistry;
+
+    /**
+     * @return 这次是否真的归还了
+     */
+    public boolean giveBack(Long voucherId, int buckets, Long userId, Long orderId) {
+        int home = SeckillKeys.homeBucket(userId, buckets);
+        Long result = stringRedisTemplate.execute(
+                ROLLBACK_SCRIPT,
+                Arrays.asList(SeckillKeys.orderKey(voucherId, home), SeckillKeys.stockKey(voucherId, home)),
+                userId.toString(), orderId.toString()
+        );
+        if (result == null || result != 1L) {
+            return false;
+        }
+        //有库存了，解除售罄
+        soldOutRegistry.clear(voucherId);
+        return true;
+    }
+}
@@ -0,0 +1,122 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
+
+/**
+ * 本地售罄登记表。
+ * lua脚本返回库存不足、再确认各桶库存之和为0后登记本地并广播，其它节点收到后也登记；
+ * 之后该券的秒杀请求在本地直接拒绝，不再访问redis。
+ * 库存回补(取消订单、对账退库存)时调用clear解除。
+ * 桶之间挪库存时库存可能暂时不在任何一个桶里，售罄可能是误判，所以登记只保留ttl这么久，
+ * 到期后下一个请求重新执行脚本，真的售罄会再登记一次。
+ * 券的库存、桶数或时间窗口重新写入后调用voucherChanged，各节点解除售罄并通知本地缓存了券信息的地方。
+ */
+@Slf4j
+@Component
+public class SoldOutRegistry {
+    private static final String SOLD_OUT = "+";
+    private static final String RESTOCK = "-";
+    private static final String CHANGED = "*";
+
+    @Value("${hmdp.seckill.sold-out-ttl-ms:2000}")
+    private long ttlMillis;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    /**
+     * 券id -> 登记失效的时间(毫秒)
+     */
+    private final Map<Long, Long> soldOut = new ConcurrentHashMap<>();
+    private final List<Consumer<Long>> changeListeners = new CopyOnWriteArrayList<>();
+
+    @PostConstruct
+    private void init() {
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            String body = new String(message.getBody(), StandardCharsets.UTF_8);
+            try {
+                Long voucherId = Long.valueOf(body.substring(1));
+                if (body.startsWith(SOLD_OUT)) {
+                    soldOut.put(voucherId, System.currentTimeMillis() + ttlMillis);
+                } else if (body.startsWith(CHANGED)) {
+                    changed(voucherId);
+                } else {
+                    soldOut.remove(voucherId);
+                }
+            } catch (Exception e) {
+                log.warn("无法解析售罄消息 {}", body);
+            }
+        }, new ChannelTopic(SECKILL_SOLD_OUT_CHANNEL));
+    }
+
+    public boolean isSoldOut(Long voucherId) {
+        Long expireAt = soldOut.get(voucherId);
+        if (expireAt == null) {
+            return false;
+        }
+        if (expireAt > System.currentTimeMillis()) {
+            return true;
+        }
+        //过期了，放一个请求去redis重新确认
+        soldOut.remove(voucherId, expireAt);
+        return false;
+    }
+
+    /**
+     * 登记售罄，本地没有有效登记时才广播，避免售罄后每个请求都发一次消息
+     */
+    public void markSoldOut(Long voucherId) {
+        long now = System.currentTimeMillis();
+        Long previous = soldOut.put(voucherId, now + ttlMillis);
+        if (previous == null || previous <= now) {
+            stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, SOLD_OUT + voucherId);
+        }
+    }
+
+    /**
+     * 库存回补后解除售罄，总是广播，其它节点可能已经登记过
+     */
+    public void clear(Long voucherId) {
+        soldOut.remove(voucherId);
+        stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, RESTOCK + voucherId);
+    }
+
+    /**
+     * 券信息重新写入redis后调用：本地马上生效，再广播给其它节点
+     */
+    public void voucherChanged(Long voucherId) {
+        changed(voucherId);
+        stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, CHANGED + voucherId);
+    }
+
+    /**
+     * 券信息变了之后要做的事，比如丢掉本地缓存的桶数和时间窗口
+     */
+    public void onVoucherChanged(Consumer<Long> listener) {
+        changeListeners.add(listener);
+    }
+
+    private void changed(Long voucherId) {
+        soldOut.remove(voucherId);
+        for (Consumer<Long> listener : changeListeners) {
+            listener.accept(voucherId);
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONObject;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessagesSummary;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * stream的归档和裁剪。
+ * 安全点 = 最小的pending消息id，没有pending时是组的last-delivered-id的下一个；
+ * 安全点之前的消息都已经投递并确认，先按批写进本地gzip文件，再用 XTRIM MINID ~ 裁掉。
+ * 每个流归档到哪里记在redis的hash里，换节点接手也不会重复归档。
+ * 同时统计流长度、pending数和未投递数，作为监控指标。
+ */
+@Slf4j
+public class StreamArchiver {
+    private static final DefaultRedisScript<Long> XTRIM_MINID_SCRIPT;
+    static {
+        XTRIM_MINID_SCRIPT = new DefaultRedisScript<>();
+        XTRIM_MINID_SCRIPT.setLocation(new ClassPathResource("xtrim_minid.lua"));
+        XTRIM_MINID_SCRIPT.setResultType(Long.class);
+    }
+    /**
+     * redis 7以下XINFO GROUPS没有lag，自己数未投递消息时最多数这么多条
+     */
+    private static final int MAX_LAG_SCAN = 1000;
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final String group;
+    private final String archivedKey;
+    private final File dir;
+    private final int batchSize;
+
+    private final AtomicLong length = new AtomicLong();
+    private final AtomicLong pending = new AtomicLong();
+    private final AtomicLong lag = new AtomicLong();
+    private final Counter archived;
+
+    /**
+     * @param archivedKey 记录每个流已归档到的消息id的hash
+     * @param dir 归档目录，按天一个 yyyy-MM-dd.jsonl.gz 文件，每批是一个gzip成员追加在末尾
+     */
+    public StreamArchiver(StringRedisTemplate stringRedisTemplate, String group, String archivedKey,
+                          File dir, int batchSize, MeterRegistry meterRegistry) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.group = group;
+        this.archivedKey = archivedKey;
+        this.dir = dir;
+        this.batchSize = batchSize;
+        Gauge.builder("seckill.orders.stream.length", length, AtomicLong::get)
+                .description("本节点负责的订单流总长度").register(meterRegistry);
+        Gauge.builder("seckill.orders.stream.pending", pending, AtomicLong::get)
+                .description("已投递未确认的订单消息数").register(meterRegistry);
+        Gauge.builder("seckill.orders.stream.lag", lag, AtomicLong::get)
+                .description("还没投递给消费者的订单消息数").register(meterRegistry);
+        this.archived = Counter.builder("seckill.orders.archived")
+                .description("已归档并裁剪的订单消息数").register(meterRegistry);
+    }
+
+    /**
+     * 对给定的分区跑一轮归档和裁剪，由调度线程定时调用
+     */
+    public void archive(List<String> streams) {
+        long totalLength = 0, totalPending = 0, totalLag = 0;
+        for (String stream : streams) {
+            try {
+                StreamInfo.XInfoGroup info = groupInfo(stream);
+                if (info == null) {
+                    continue;
+                }
+                totalLength += stringRedisTemplate.opsForStream().size(stream);
+                totalPending += info.pendingCount();
+                totalLag += lag(stream, info);
+                RecordId safe = safePoint(stream, info);
+                if (safe != null) {
+                    trim(stream, archiveBefore(stream, safe));
+                }
+            } catch (Exception e) {
+                log.warn("归档订单流失败 {}", stream, e);
+            }
+        }
+        length.set(totalLength);
+        pending.set(totalPending);
+        lag.set(totalLag);
+    }
+
+    private StreamInfo.XInfoGroup groupInfo(String stream) {
+        StreamInfo.XInfoGroups groups = stringRedisTemplate.opsForStream().groups(stream);
+        for (int i = 0; i < groups.size(); i++) {
+            if (group.equals(groups.get(i).groupName())) {
+                return groups.get(i);
+            }
+        }
+        return null;
+    }
+
+    private long lag(String stream, StreamInfo.XInfoGroup info) {
+        Object lag = info.getRaw().get("lag");
+        if (lag instanceof Number) {
+            return ((Number) lag).longValue();
+        }
+        //老版本redis：数一下last-delivered-id之后还有多少条
+        List<MapRecord<String, Object, Object>> undelivered = stringRedisTemplate.opsForStream().range(stream,
+                Range.rightUnbounded(Range.Bound.inclusive(next(RecordId.of(info.lastDeliveredId())).getValue())),
+                RedisZSetCommands.Limit.limit().count(MAX_LAG_SCAN));
+        return undelivered == null ? 0 : undelivered.size();
+    }
+
+    /**
+     * 比安全点小的消息都可以裁掉，还没投递过任何消息时返回null
+     */
+    private RecordId safePoint(String stream, StreamInfo.XInfoGroup info) {
+        RecordId lastDelivered = RecordId.of(info.lastDeliveredId());
+        if (lastDelivered.getTimestamp() == 0 && lastDelivered.getSequence() == 0) {
+            return null;
+        }
+        if (info.pendingCount() > 0) {
+            PendingMessagesSummary summary = stringRedisTemplate.opsForStream().pending(stream, group);
+            if (summary != null && summary.getTotalPendingMessages() > 0) {
+                return summary.minRecordId();
+            }
+        }
+        return next(lastDelivered);
+    }
+
+    /**
+     * 把安全点之前、还没归档的消息分批写进文件
+     * @return 已归档到的位置(下一个要归档的id)，裁剪不能超过它
+     */
+    private RecordId archiveBefore(String stream, RecordId safe) throws IOException {
+        Object last = stringRedisTemplate.opsForHash().get(archivedKey, stream);
+        RecordId from = last == null ? RecordId.of("0-0") : next(RecordId.of(last.toString()));
+        while (compare(from, safe) < 0) {
+            List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().range(stream,
+                    Range.closed(from.getValue(), previous(safe).getValue()),
+                    RedisZSetCommands.Limit.limit().count(batchSize));
+            if (records == null || records.isEmpty()) {
+                //中间已经没有消息了
+                return safe;
+            }
+            write(stream, records);
+            RecordId lastId = records.get(records.size() - 1).getId();
+            stringRedisTemplate.opsForHash().put(archivedKey, stream, lastId.getValue());
+            archived.increment(records.size());
+            from = next(lastId);
+        }
+        return safe;
+    }
+
+    private void trim(String stream, RecordId minId) {
+        stringRedisTemplate.execute(XTRIM_MINID_SCRIPT, Collections.singletonList(stream), minId.getValue());
+    }
+
+    /**
+     * 一批写成一个gzip成员追加到当天的文件，多个成员首尾相接仍是合法的gzip文件；刷盘之后才允许裁剪
+     */
+    private void write(String stream, List<MapRecord<String, Object, Object>> records) throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("无法创建归档目录 " + dir);
+        }
+        File file = new File(dir, LocalDate.now() + ".jsonl.gz");
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            GZIPOutputStream gzip = new GZIPOutputStream(out);
+            Writer writer = new OutputStreamWriter(gzip, StandardCharsets.UTF_8);
+            for (MapRecord<String, Object, Object> record : records) {
+                JSONObject line = new JSONObject();
+                line.set("stream", stream);
+                line.set("id", record.getId().getValue());
+                line.set("fields", record.getValue());
+                writer.write(line.toString());
+                writer.write('\n');
+            }
+            writer.flush();
+            gzip.finish();
+            out.getFD().sync();
+        }
+    }
+
+    private static int compare(RecordId a, RecordId b) {
+        int c = Long.compare(a.getTimestamp(), b.getTimestamp());
+        return c != 0 ? c : Long.compare(a.getSequence(), b.getSequence());
+    }
+
+    private static RecordId next(RecordId id) {
+        return RecordId.of(id.getTimestamp(), id.getSequence() + 1);
+    }
+
+    private static RecordId previous(RecordId id) {
+        return id.getSequence() > 0
+                ? RecordId.of(id.getTimestamp(), id.getSequence() - 1)
+                : RecordId.of(id.getTimestamp() - 1, Long.MAX_VALUE);
+    }
+}
@@ -0,0 +1,125 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.util.StrUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * 基于redis心跳的分区分配器。
+ * 每个节点定时把自己写进一个zset(score为心跳时间)，存活节点按名字排序后，
+ * 第i个节点分到 序号 % 节点数 == i 的分区；节点上下线后下一次心跳自动重新分配。
+ * 分配切换的瞬间两个节点可能同时读同一分区，消费者组保证一条消息只投递一次，所以是安全的。
+ */
+@Slf4j
+public class StreamPartitionAssigner {
+    private static final long HEARTBEAT_INTERVAL_MS = 2000;
+    private static final long NODE_TTL_MS = 10000;
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final String nodesKey;
+    private final Supplier<List<String>> partitions;
+    private final String nodeId;
+    private final ScheduledExecutorService scheduler;
+    private volatile List<String> owned = Collections.emptyList();
+
+    public StreamPartitionAssigner(StringRedisTemplate stringRedisTemplate, String nodesKey, Supplier<List<String>> partitions) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.nodesKey = nodesKey;
+        this.partitions = partitions;
+        this.nodeId = createNodeId();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "partition-assigner");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public void start() {
+        //先同步跑一次，保证消费者启动时就有分区
+        rebalance();
+        scheduler.scheduleWithFixedDelay(this::rebalance, HEARTBEAT_INTERVAL_MS, HEARTBEAT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        scheduler.shutdownNow();
+        try {
+            stringRedisTemplate.opsForZSet().remove(nodesKey, nodeId);
+        } catch (Exception e) {
+            log.warn("注销消费节点失败 {}", nodeId, e);
+        }
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * 本节点负责的全部分区
+     */
+    public List<String> owned() {
+        return owned;
+    }
+
+    /**
+     * 本节点第worker个消费线程负责的分区
+     * @param worker 线程序号
+     * @param workers 本节点消费线程数
+     */
+    public List<String> assigned(int worker, int workers) {
+        List<String> all = owned;
+        List<String> mine = new ArrayList<>();
+        for (int i = worker; i < all.size(); i += workers) {
+            mine.add(all.get(i));
+        }
+        return mine;
+    }
+
+    private void rebalance() {
+        try {
+            long now = System.currentTimeMillis();
+            //1.心跳，并清理超时的节点
+            stringRedisTemplate.opsForZSet().add(nodesKey, nodeId, now);
+            stringRedisTemplate.opsForZSet().removeRangeByScore(nodesKey, 0, now - NODE_TTL_MS);
+            //2.按名字排序，算出自己的位置
+            Set<String> members = stringRedisTemplate.opsForZSet().range(nodesKey, 0, -1);
+            List<String> nodes = members == null ? new ArrayList<>() : new ArrayList<>(members);
+            Collections.sort(nodes);
+            int index = nodes.indexOf(nodeId);
+            if (index < 0) {
+                return;
+            }
+            //3.取模分配分区
+            List<String> all = partitions.get();
+            List<String> mine = new ArrayList<>();
+            for (int i = index; i < all.size(); i += nodes.size()) {
+                mine.add(all.get(i));
+            }
+            if (!mine.equals(owned)) {
+                log.info("节点{}分配到分区{}", nodeId, mine);
+            }
+            owned = mine;
+        } catch (Exception e) {
+            log.warn("分区重新分配失败", e);
+        }
+    }
+
+    private static String createNodeId() {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (Exception e) {
+            host = "unknown";
+        }
+        String pid = StrUtil.subBefore(ManagementFactory.getRuntimeMXBean().getName(), "@", false);
+        return host + "-" + pid + "-" + UUID.randomUUID().toString(true).substring(0, 8);
+    }
+}
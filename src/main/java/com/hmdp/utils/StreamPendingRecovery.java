@@ -0,0 +1,219 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisStreamCommands;
+import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * stream消费组的pending-list恢复。
+ * 1.用XAUTOCLAIM把空闲超时的消息(消费者挂了或处理失败)认领到本节点的恢复消费者名下；
+ * 2.按投递次数做指数退避重试，空闲时间达到 base * 2^(投递次数-1) 才会再试一次；
+ * 3.投递次数达到上限的消息转进死信流，并从原流确认掉。
+ * 投递次数和空闲时间都存在redis的PEL里，节点重启不会丢失退避进度。
+ */
+@Slf4j
+public class StreamPendingRecovery {
+    private static final DefaultRedisScript<List> XAUTOCLAIM_SCRIPT;
+    static {
+        XAUTOCLAIM_SCRIPT = new DefaultRedisScript<>();
+        XAUTOCLAIM_SCRIPT.setLocation(new ClassPathResource("xautoclaim.lua"));
+        XAUTOCLAIM_SCRIPT.setResultType(List.class);
+    }
+    private static final String CURSOR_END = "0-0";
+    private static final int PAGE_SIZE = 100;
+    private static final int MAX_PAGES = 10;
+    private static final int MAX_ERRORS = 1000;
+    /**
+     * 没有pending消息、且空闲这么久的消费者视为已下线，从组里删除
+     */
+    private static final long DEAD_CONSUMER_IDLE_MS = 10 * 60 * 1000L;
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final String group;
+    private final String consumerName;
+    private final String deadLetterKey;
+    private final long minIdleMs;
+    private final long backoffBaseMs;
+    private final long backoffMaxMs;
+    private final int maxAttempts;
+    private final Consumer<MapRecord<String, Object, Object>> handler;
+    /**
+     * 消息转入死信后的回调，参数是写进死信流的内容
+     */
+    private Consumer<Map<Object, Object>> deadLetterHandler = value -> { };
+    /**
+     * 最近一次失败原因，写进死信方便排查；只有恢复线程访问
+     */
+    private final Map<String, String> lastErrors = new LinkedHashMap<String, String>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_ERRORS;
+        }
+    };
+
+    public StreamPendingRecovery(StringRedisTemplate stringRedisTemplate, String group, String consumerName,
+                                 String deadLetterKey, long minIdleMs, long backoffBaseMs, long backoffMaxMs,
+                                 int maxAttempts, Consumer<MapRecord<String, Object, Object>> handler) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.group = group;
+        this.consumerName = consumerName;
+        this.deadLetterKey = deadLetterKey;
+        this.minIdleMs = minIdleMs;
+        this.backoffBaseMs = backoffBaseMs;
+        this.backoffMaxMs = backoffMaxMs;
+        this.maxAttempts = maxAttempts;
+        this.handler = handler;
+    }
+
+    public StreamPendingRecovery onDeadLetter(Consumer<Map<Object, Object>> deadLetterHandler) {
+        this.deadLetterHandler = deadLetterHandler;
+        return this;
+    }
+
+    /**
+     * 对给定的分区跑一轮恢复，由调度线程定时调用
+     */
+    public void recover(List<String> streams) {
+        for (String stream : streams) {
+            try {
+                adopt(stream);
+                retry(stream);
+                removeDeadConsumers(stream);
+            } catch (Exception e) {
+                log.warn("恢复pending-list失败 {}", stream, e);
+            }
+        }
+    }
+
+    /**
+     * XAUTOCLAIM 接管空闲超时的消息
+     */
+    private void adopt(String stream) {
+        String cursor = CURSOR_END;
+        for (int page = 0; page < MAX_PAGES; page++) {
+            List<?> res = stringRedisTemplate.execute(
+                    XAUTOCLAIM_SCRIPT,
+                    Collections.singletonList(stream),
+                    group, consumerName, String.valueOf(minIdleMs), cursor, String.valueOf(PAGE_SIZE)
+            );
+            if (res == null || res.size() < 2) {
+                return;
+            }
+            List<?> adopted = (List<?>) res.get(1);
+            if (!adopted.isEmpty()) {
+                log.info("{}接管了{}条超时消息", stream, adopted.size());
+            }
+            cursor = String.valueOf(res.get(0));
+            if (CURSOR_END.equals(cursor)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 按退避时间重试自己名下的消息
+     */
+    private void retry(String stream) {
+        PendingMessages pending = stringRedisTemplate.opsForStream().pending(
+                stream, org.springframework.data.redis.connection.stream.Consumer.from(group, consumerName),
+                Range.unbounded(), PAGE_SIZE);
+        for (PendingMessage message : pending) {
+            long deliveries = message.getTotalDeliveryCount();
+            long idle = message.getElapsedTimeSinceLastDelivery().toMillis();
+            long backoff = backoff(deliveries);
+            //1.退避时间没到，下次再说
+            if (idle < backoff) {
+                continue;
+            }
+            //2.次数用完，进死信
+            if (deliveries >= maxAttempts) {
+                deadLetter(stream, message.getId(), deliveries);
+                continue;
+            }
+            //3.重新认领一次(投递次数+1，空闲清零)，拿到消息体后重试
+            MapRecord<String, Object, Object> record = claim(stream, message.getId(), backoff);
+            if (record == null) {
+                continue;
+            }
+            try {
+                handler.accept(record);
+                stringRedisTemplate.opsForStream().acknowledge(stream, group, record.getId());
+                lastErrors.remove(record.getId().getValue());
+            } catch (Exception e) {
+                log.warn("重试订单消息失败 {} {} 第{}次", stream, record.getId(), deliveries + 1, e);
+                lastErrors.put(record.getId().getValue(), StrUtil.maxLength(String.valueOf(e.getMessage()), 200));
+            }
+        }
+    }
+
+    private MapRecord<String, Object, Object> claim(String stream, RecordId id, long minIdle) {
+        byte[] rawKey = stream.getBytes(StandardCharsets.UTF_8);
+        List<ByteRecord> claimed = stringRedisTemplate.execute((RedisCallback<List<ByteRecord>>) connection ->
+                connection.xClaim(rawKey, group, consumerName,
+                        RedisStreamCommands.XClaimOptions.minIdleMs(minIdle).ids(id)));
+        if (claimed != null && !claimed.isEmpty()) {
+            ByteRecord record = claimed.get(0);
+            Map<Object, Object> value = new HashMap<>(record.getValue().size() * 2);
+            record.getValue().forEach((k, v) -> value.put(
+                    new String(k, StandardCharsets.UTF_8), new String(v, StandardCharsets.UTF_8)));
+            return MapRecord.create(stream, value).withId(record.getId());
+        }
+        //没认领到：要么被别的节点抢走了，要么消息已经从流里删除；后者直接确认掉
+        if (range(stream, id).isEmpty()) {
+            stringRedisTemplate.opsForStream().acknowledge(stream, group, id);
+        }
+        return null;
+    }
+
+    private void deadLetter(String stream, RecordId id, long deliveries) {
+        List<MapRecord<String, Object, Object>> records = range(stream, id);
+        if (!records.isEmpty()) {
+            Map<Object, Object> value = new LinkedHashMap<>(records.get(0).getValue());
+            value.put("stream", stream);
+            value.put("sourceId", id.getValue());
+            value.put("deliveries", String.valueOf(deliveries));
+            value.put("error", lastErrors.getOrDefault(id.getValue(), "超过最大重试次数"));
+            stringRedisTemplate.opsForStream().add(deadLetterKey, value);
+            log.error("订单消息{} {}重试{}次仍失败，转入死信", stream, id, deliveries);
+            try {
+                deadLetterHandler.accept(value);
+            } catch (Exception e) {
+                log.warn("死信回调失败 {} {}", stream, id, e);
+            }
+        }
+        stringRedisTemplate.opsForStream().acknowledge(stream, group, id);
+        lastErrors.remove(id.getValue());
+    }
+
+    private void removeDeadConsumers(String stream) {
+        StreamInfo.XInfoConsumers consumers = stringRedisTemplate.opsForStream().consumers(stream, group);
+        for (int i = 0; i < consumers.size(); i++) {
+            StreamInfo.XInfoConsumer consumer = consumers.get(i);
+            if (consumer.pendingCount() == 0 && consumer.idleTimeMs() > DEAD_CONSUMER_IDLE_MS) {
+                stringRedisTemplate.opsForStream().deleteConsumer(stream,
+                        org.springframework.data.redis.connection.stream.Consumer.from(group, consumer.consumerName()));
+            }
+        }
+    }
+
+    private List<MapRecord<String, Object, Object>> range(String stream, RecordId id) {
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream()
+                .range(stream, Range.closed(id.getValue(), id.getValue()));
+        return records == null ? Collections.emptyList() : records;
+    }
+
+    private long backoff(long deliveries) {
+        long shift = Math.min(Math.max(deliveries - 1, 0), 30);
+        return Math.min(backoffBaseMs << shift, backoffMaxMs);
+    }
+}
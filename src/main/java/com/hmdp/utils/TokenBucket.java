@@ -0,0 +1,57 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 无锁令牌桶，按GCRA实现：只记一个"理论到达时间"，每次取令牌一次CAS，不分配对象。
+ * 到达时间不晚于当前时间说明桶已经满了，和新建的桶等价，可以安全丢弃。
+ */
+public class TokenBucket {
+    /**
+     * 生成一个令牌的间隔(纳秒)
+     */
+    private final long interval;
+    /**
+     * 允许透支的时长，即 (容量-1) 个令牌的间隔
+     */
+    private final long tolerance;
+    private final AtomicLong arrival = new AtomicLong(Long.MIN_VALUE);
+
+    public TokenBucket(double permitsPerSecond, int burst) {
+        this.interval = Math.max(1L, (long) (1_000_000_000L / permitsPerSecond));
+        this.tolerance = interval * (Math.max(burst, 1) - 1);
+    }
+
+    public boolean tryAcquire() {
+        return tryAcquire(System.nanoTime());
+    }
+
+    boolean tryAcquire(long now) {
+        while (true) {
+            long tat = arrival.get();
+            long base = tat == Long.MIN_VALUE || tat - now < 0 ? now : tat;
+            //超过可透支的时长，令牌不够
+            if (base - now > tolerance) {
+                return false;
+            }
+            if (arrival.compareAndSet(tat, base + interval)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 从取空到重新满所需的时长(纳秒)，最后一次取令牌之后过了这么久，桶一定满了
+     */
+    public long refillNanos() {
+        return tolerance + interval;
+    }
+
+    /**
+     * 桶是否已经满了(长时间没有请求)
+     */
+    public boolean isIdle() {
+        long tat = arrival.get();
+        return tat == Long.MIN_VALUE || tat - System.nanoTime() <= 0;
+    }
+}
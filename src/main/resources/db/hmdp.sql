@@ -65,6 +65,18 @@ CREATE TABLE `tb_blog_comments`  (
 -- Records of tb_blog_comments
 -- ----------------------------
 
+-- ----------------------------
+-- Table structure for tb_cache_outbox
+-- ----------------------------
+DROP TABLE IF EXISTS `tb_cache_outbox`;
+CREATE TABLE `tb_cache_outbox`  (
+  `id` bigint(20) UNSIGNED NOT NULL AUTO_INCREMENT COMMENT '主键',
+  `cache_key` varchar(255) CHARACTER SET utf8mb4 COLLATE utf8mb4_general_ci NOT NULL COMMENT '要删除的缓存key',
+  `create_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '创建时间',
+  PRIMARY KEY (`id`) USING BTREE,
+  INDEX `idx_create_time`(`create_time`) USING BTREE
+) ENGINE = InnoDB CHARACTER SET = utf8mb4 COLLATE = utf8mb4_general_ci ROW_FORMAT = Compact;
+
 -- ----------------------------
 -- Table structure for tb_follow
 -- ----------------------------
@@ -1274,9 +1286,22 @@ CREATE TABLE `tb_voucher_order`  (
   `use_time` timestamp NULL DEFAULT NULL COMMENT '核销时间',
   `refund_time` timestamp NULL DEFAULT NULL COMMENT '退款时间',
   `update_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
-  PRIMARY KEY (`id`) USING BTREE
+  `active` tinyint(1) UNSIGNED NULL DEFAULT 1 COMMENT '有效订单为1，取消后置为NULL，唯一索引不再约束，用户可以重新购买',
+  PRIMARY KEY (`id`) USING BTREE,
+  UNIQUE INDEX `uk_user_voucher`(`user_id`, `voucher_id`, `active`) USING BTREE,
+  INDEX `idx_voucher_id`(`voucher_id`) USING BTREE
 ) ENGINE = InnoDB CHARACTER SET = utf8mb4 COLLATE = utf8mb4_general_ci ROW_FORMAT = Compact;
 
+-- ----------------------------
+-- 已有数据库升级：加active列，唯一索引改为(user_id, voucher_id, active)，已取消的订单不再占用唯一索引
+-- (还没有uk_user_voucher的库去掉DROP INDEX那一行；没有idx_voucher_id的库加上 ADD INDEX `idx_voucher_id`(`voucher_id`))
+-- ALTER TABLE `tb_voucher_order`
+--   ADD COLUMN `active` tinyint(1) UNSIGNED NULL DEFAULT 1 COMMENT '有效订单为1，取消后置为NULL，唯一索引不再约束，用户可以重新购买' AFTER `update_time`,
+--   DROP INDEX `uk_user_voucher`,
+--   ADD UNIQUE INDEX `uk_user_voucher`(`user_id`, `voucher_id`, `active`) USING BTREE;
+-- UPDATE `tb_voucher_order` SET `active` = NULL WHERE `status` = 4;
+-- ----------------------------
+
 -- ----------------------------
 -- Records of tb_voucher_order
 -- ----------------------------
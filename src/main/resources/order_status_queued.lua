@@ -0,0 +1,9 @@
+-- 秒杀成功后记QUEUED。消费线程可能已经先写了终态，只在没有状态时写入，写入和设置过期在一个脚本里完成
+-- KEYS[1] order:status:订单id
+-- ARGV[1] 状态QUEUED，ARGV[2] 用户id，ARGV[3] 过期秒数
+if(redis.call('hsetnx', KEYS[1], 'status', ARGV[1]) == 0) then
+    return 0
+end
+redis.call('hset', KEYS[1], 'userId', ARGV[2])
+redis.call('expire', KEYS[1], ARGV[3])
+return 1
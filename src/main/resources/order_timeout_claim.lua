@@ -0,0 +1,32 @@
+-- 认领快到期的超时任务：从待处理zset移到租约zset，租约到期没删掉的任务放回待处理
+-- 两个key带同一个hash tag，集群下在同一个slot
+-- 1.参数列表
+-- 1.1.待处理 {order:timeout}，score是到期时间
+local pendingKey = KEYS[1]
+-- 1.2.已认领 {order:timeout}:leased，score是租约到期时间
+local leasedKey = KEYS[2]
+-- 1.3.当前时间(毫秒)
+local now = tonumber(ARGV[1])
+-- 1.4.认领多久之内到期的任务
+local horizon = tonumber(ARGV[2])
+-- 1.5.租约时长，从任务到期时间和认领时间里较晚的那个算起
+local lease = tonumber(ARGV[3])
+-- 1.6.每次最多认领多少个
+local limit = tonumber(ARGV[4])
+
+-- 2.脚本业务
+-- 2.1.租约过期的任务(认领它的节点挂了)，放回待处理，立即到期
+local expired = redis.call('zrangebyscore', leasedKey, '-inf', now, 'LIMIT', 0, limit)
+for i, member in ipairs(expired) do
+    redis.call('zadd', pendingKey, now, member)
+    redis.call('zrem', leasedKey, member)
+end
+-- 2.2.认领horizon之内到期的任务
+local due = redis.call('zrangebyscore', pendingKey, '-inf', now + horizon, 'WITHSCORES', 'LIMIT', 0, limit)
+for i = 1, #due, 2 do
+    redis.call('zrem', pendingKey, due[i])
+    -- 积压的任务早就到期了，租约要从现在算，不然一认领就过期，下一轮又被放回来
+    redis.call('zadd', leasedKey, math.max(now, tonumber(due[i + 1])) + lease, due[i])
+end
+-- 2.3.返回 member1 deadline1 member2 deadline2 ...
+return due
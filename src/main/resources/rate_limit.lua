@@ -0,0 +1,26 @@
+-- 滑动窗口限流：zset里存窗口内每次请求的时间，超过limit就拒绝
+-- 用redis服务器时间，各节点时钟不一致也不影响
+redis.replicate_commands()
+-- 1.参数列表
+-- 1.1.计数key limit:限流名:维度
+local key = KEYS[1]
+-- 1.2.窗口内允许的请求数
+local limit = tonumber(ARGV[1])
+-- 1.3.窗口长度(微秒)
+local window = tonumber(ARGV[2])
+-- 1.4.本次请求的唯一标识，避免同一微秒的请求互相覆盖
+local member = ARGV[3]
+
+-- 2.脚本业务
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000000 + tonumber(time[2])
+-- 2.1.移除窗口外的记录
+redis.call('zremrangebyscore', key, 0, now - window)
+-- 2.2.窗口内请求数已满，拒绝
+if(redis.call('zcard', key) >= limit) then
+    return 0
+end
+-- 2.3.记录本次请求
+redis.call('zadd', key, now, member)
+redis.call('pexpire', key, math.ceil(window / 1000))
+return 1
@@ -1,32 +1,56 @@
+-- 只操作用户主桶的key，都带同一个hash tag {券id:桶号}，单机和redis集群都能直接运行
+-- 脚本里要读redis的TIME，低版本redis需要按命令复制，否则读时间之后不能再写
+redis.replicate_commands()
 -- 1.参数列表
--- 1.1.优惠券id
+-- 1.1.主桶库存 seckill:stock:{券id:桶号}
+local stockKey = KEYS[1]
+-- 1.2.主桶的购买记录 seckill:order:{券id:桶号}，hash 用户id -> 订单id
+local orderKey = KEYS[2]
+-- 1.3.主桶的订单流 stream.orders:{券id:桶号}
+local streamKey = KEYS[3]
+-- 1.4.优惠券id
 local voucherId = ARGV[1]
--- 1.2.用户id
+-- 1.5.用户id
 local userId = ARGV[2]
--- 1.3.订单id
+-- 1.6.订单id
 local orderId = ARGV[3]
+-- 1.7.开始结束时间(epoch秒)，秒杀信息在别的slot，由调用方缓存后传入，空串表示不限制
+local beginTime = ARGV[4]
+local endTime = ARGV[5]
+-- 1.8.主桶号
+local bucket = ARGV[6]
+-- 1.9.调用方刚从其它桶挪过来的库存，先加到主桶
+local moved = tonumber(ARGV[7] or '0')
 
--- 2.数据key
--- 2.1.库存key
-local stockKey = 'seckill:stock:' .. voucherId
--- 2.2.订单key
-local orderKey = 'seckill:order:' .. voucherId
-
--- 3.脚本业务
--- 3.1.判断库存是否充足 get stockKey tonumber 把字符串转换成数字类型
-if(tonumber(redis.call('get', stockKey)) <= 0) then
-    -- 3.2.库存不足，返回1
-    return 1
+-- 2.脚本业务
+-- 2.1.挪来的库存已经从别的桶扣掉了，无论后面结果如何都要先入账，不能丢
+if(moved > 0) then
+    redis.call('incrby', stockKey, moved)
+end
+-- 2.2.用redis服务器时间校验秒杀时间窗口
+local now = tonumber(redis.call('time')[1])
+if(beginTime ~= '' and now < tonumber(beginTime)) then
+    -- 还没开始，返回3
+    return 3
 end
--- 3.2.判断用户是否下单 SISMEMBER orderKey userId
-if(redis.call('sismember', orderKey, userId) == 1) then
-    -- 3.3.存在，说明是重复下单，返回2
+if(endTime ~= '' and now > tonumber(endTime)) then
+    -- 已经结束，返回4
+    return 4
+end
+-- 2.3.判断用户是否下单 HEXISTS orderKey userId
+if(redis.call('hexists', orderKey, userId) == 1) then
+    -- 存在，说明是重复下单，返回2
     return 2
 end
--- 3.4.扣库存 incrby stockKey -1
+-- 2.4.判断主桶库存是否充足 get stockKey
+if(tonumber(redis.call('get', stockKey) or '0') <= 0) then
+    -- 主桶没有库存，返回1，由调用方从其它桶挪库存
+    return 1
+end
+-- 2.5.扣库存 incrby stockKey -1
 redis.call('incrby', stockKey, -1)
--- 3.5.下单（保存用户）sadd orderKey userId
-redis.call('sadd', orderKey, userId)
--- 3.6.发送消息到队列中， XADD stream.orders * k1 v1 k2 v2 ...
-redis.call('xadd', 'stream.orders', '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
-return 0
\ No newline at end of file
+-- 2.6.下单（保存用户和订单id）hset orderKey userId orderId，对账时按原订单id重新投递
+redis.call('hset', orderKey, userId, orderId)
+-- 2.7.发送消息到主桶的订单流， XADD stream.orders:{券id:桶号} * k1 v1 k2 v2 ...
+redis.call('xadd', streamKey, '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId, 'bucket', bucket)
+return 0
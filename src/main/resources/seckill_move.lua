@@ -0,0 +1,9 @@
+-- 主桶空了，从另一个桶挪出一半(向上取整)库存，返回挪出的数量，调用方再加到主桶
+-- KEYS[1] 被挪的桶 seckill:stock:{券id:桶号}
+local stock = tonumber(redis.call('get', KEYS[1]) or '0')
+if(stock <= 0) then
+    return 0
+end
+local moved = math.ceil(stock / 2)
+redis.call('incrby', KEYS[1], -moved)
+return moved
@@ -0,0 +1,20 @@
+-- 归还一个订单占用的秒杀名额：购买记录还指向这个订单才移除并加回库存，重复调用不会多加；
+-- 用户取消后又买到了新订单，购买记录是新订单的，不动
+-- 1.参数列表
+-- 1.1.用户主桶的购买记录 seckill:order:{券id:主桶}，hash 用户id -> 订单id
+local orderKey = KEYS[1]
+-- 1.2.主桶库存 seckill:stock:{券id:主桶}，和购买记录在同一个slot
+local stockKey = KEYS[2]
+-- 1.3.用户id
+local userId = ARGV[1]
+-- 1.4.要归还的订单id
+local orderId = ARGV[2]
+
+-- 2.脚本业务
+if(redis.call('hget', orderKey, userId) ~= orderId) then
+    -- 不在购买记录里(已经归还过了)，或者记录的是别的订单
+    return 0
+end
+redis.call('hdel', orderKey, userId)
+redis.call('incrby', stockKey, 1)
+return 1
@@ -0,0 +1,31 @@
+-- 1.参数列表
+-- 1.1.KEYS[1] 订单流分区key
+local key = KEYS[1]
+-- 1.2.消费者组、恢复消费者、最小空闲毫秒、游标、数量
+local group = ARGV[1]
+local consumer = ARGV[2]
+local minIdle = ARGV[3]
+local cursor = ARGV[4]
+local count = ARGV[5]
+
+-- 2.先记下恢复消费者自己那些会被扫到的消息的空闲时间
+-- XAUTOCLAIM会把它们的空闲时间清零，导致指数退避永远等不到
+local own = {}
+local pending = redis.call('xpending', key, group, 'IDLE', minIdle, cursor, '+', count, consumer)
+for _, p in ipairs(pending) do
+    own[p[1]] = p[3]
+end
+
+-- 3.把空闲超时的消息认领到恢复消费者名下，JUSTID不增加投递次数
+local res = redis.call('xautoclaim', key, group, consumer, minIdle, cursor, 'COUNT', count, 'JUSTID')
+
+-- 4.本来就是自己的消息恢复原来的空闲时间，其余的是新接管的
+local adopted = {}
+for _, id in ipairs(res[2]) do
+    if own[id] then
+        redis.call('xclaim', key, group, consumer, 0, id, 'IDLE', own[id], 'JUSTID')
+    else
+        table.insert(adopted, id)
+    end
+end
+return {res[1], adopted}
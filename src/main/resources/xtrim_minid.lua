@@ -0,0 +1,3 @@
+-- 近似裁剪：删除id小于ARGV[1]的消息，~ 让redis按整块宏节点删除，开销更小
+-- spring-data-redis的XTRIM只支持MAXLEN，这里用脚本发MINID
+return redis.call('xtrim', KEYS[1], 'MINID', '~', ARGV[1])
@@ -0,0 +1,143 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.Blog;
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.ShopType;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BinaryCacheCodecTest {
+    private final BinaryCacheCodec codec = new BinaryCacheCodec();
+
+    static Shop shop() {
+        return new Shop().setId(1L).setName("103茶餐厅").setTypeId(1L)
+                .setImages("https://example.com/a.jpg,https://example.com/b.jpg")
+                .setArea("大关").setAddress("金华路锦昌文华苑29号")
+                .setX(120.149192).setY(30.316078).setAvgPrice(80L)
+                .setSold(4215).setComments(3035).setScore(37).setOpenHours("10:00-22:00")
+                .setCreateTime(LocalDateTime.of(2021, 12, 22, 18, 10, 39))
+                .setUpdateTime(LocalDateTime.of(2022, 1, 13, 17, 32, 19, 123456789));
+    }
+
+    static Blog blog() {
+        return new Blog().setId(4L).setShopId(4L).setUserId(2L).setTitle("无尽浪漫的夜晚")
+                .setImages("/imgs/blogs/7/14/4771fefb.jpg").setContent("生活就是一半烟火·一半诗意\n手执烟火谋生活")
+                .setLiked(1).setComments(104)
+                .setCreateTime(LocalDateTime.of(2021, 12, 28, 19, 50, 1))
+                .setUpdateTime(LocalDateTime.of(2022, 3, 10, 14, 26, 34));
+    }
+
+    static UserDTO user() {
+        UserDTO user = new UserDTO();
+        user.setId(2L);
+        user.setNickName("可可今天不吃肉");
+        user.setIcon("/imgs/icons/kkjtbcr.jpg");
+        return user;
+    }
+
+    @Test
+    void shopRoundTrip() {
+        Shop shop = shop();
+        assertEquals(shop, decode(codec.encode(shop), Shop.class));
+    }
+
+    @Test
+    void nullFieldsStayNull() {
+        Shop shop = new Shop().setId(7L);
+        Shop decoded = decode(codec.encode(shop), Shop.class);
+        assertEquals(shop, decoded);
+        assertNull(decoded.getName());
+        assertNull(decoded.getX());
+        assertNull(decoded.getCreateTime());
+    }
+
+    @Test
+    void shopDistanceIsNotCached() {
+        Shop shop = shop().setDistance(123.4);
+        assertNull(decode(codec.encode(shop), Shop.class).getDistance());
+    }
+
+    @Test
+    void blogRoundTripWithoutPerUserFields() {
+        Blog blog = blog();
+        Blog withUserFields = blog().setName("可可今天不吃肉").setIcon("/imgs/icons/kkjtbcr.jpg").setIsLike(true);
+        assertEquals(blog, decode(codec.encode(withUserFields), Blog.class));
+    }
+
+    @Test
+    void longContentRoundTrip() {
+        //超过writeUTF的64K上限
+        char[] content = new char[70_000];
+        Arrays.fill(content, '诗');
+        Blog blog = blog().setContent(new String(content));
+        assertEquals(blog, decode(codec.encode(blog), Blog.class));
+    }
+
+    @Test
+    void userRoundTrip() {
+        UserDTO user = user();
+        assertEquals(user, decode(codec.encode(user), UserDTO.class));
+    }
+
+    @Test
+    void listRoundTrip() {
+        List<Shop> shops = Arrays.asList(shop(), new Shop().setId(2L), null);
+        byte[] bytes = codec.encode(shops);
+        assertEquals(shops, codec.decodeList(bytes, 0, bytes.length, Shop.class));
+    }
+
+    @Test
+    void emptyListRoundTrip() {
+        byte[] bytes = codec.encode(Collections.emptyList());
+        assertTrue(codec.decodeList(bytes, 0, bytes.length, UserDTO.class).isEmpty());
+    }
+
+    @Test
+    void logicalExpireRoundTrip() {
+        RedisData redisData = new RedisData();
+        redisData.setExpireTime(LocalDateTime.of(2022, 5, 1, 12, 0, 0, 5));
+        redisData.setData(shop());
+        byte[] bytes = codec.encode(redisData);
+        RedisData decoded = codec.decodeLogical(bytes, 0, bytes.length, Shop.class);
+        assertEquals(redisData.getExpireTime(), decoded.getExpireTime());
+        assertEquals(shop(), decoded.getData());
+    }
+
+    @Test
+    void decodeWithOffset() {
+        byte[] body = codec.encode(user());
+        byte[] bytes = new byte[body.length + 3];
+        System.arraycopy(body, 0, bytes, 3, body.length);
+        assertEquals(user(), codec.decode(bytes, 3, body.length, UserDTO.class));
+    }
+
+    @Test
+    void unsupportedTypes() {
+        ShopType type = new ShopType();
+        assertFalse(codec.supports(type));
+        assertFalse(codec.supports(Arrays.asList(shop(), type)));
+        RedisData redisData = new RedisData();
+        redisData.setData(type);
+        assertFalse(codec.supports(redisData));
+        assertTrue(codec.supports(Arrays.asList(shop(), null)));
+        assertThrows(IllegalArgumentException.class, () -> codec.encode(type));
+    }
+
+    @Test
+    void wrongShapeIsRejected() {
+        byte[] single = codec.encode(shop());
+        assertThrows(IllegalStateException.class, () -> codec.decodeList(single, 0, single.length, Shop.class));
+        assertThrows(IllegalStateException.class, () -> codec.decodeLogical(single, 0, single.length, Shop.class));
+    }
+
+    private <T> T decode(byte[] bytes, Class<T> type) {
+        return codec.decode(bytes, 0, bytes.length, type);
+    }
+}
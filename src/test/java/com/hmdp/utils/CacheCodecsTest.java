@@ -0,0 +1,157 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONUtil;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.Blog;
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.ShopType;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.hmdp.utils.BinaryCacheCodecTest.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class CacheCodecsTest {
+    private static final int COMPRESSED = 0x80;
+    private static final int EXPIRY = 0x40;
+    private static final int FORMAT_MASK = 0x3F;
+
+    /**
+     * 不启动spring，手工注入配置和codec
+     */
+    static CacheCodecs codecs(String writer, int compressThreshold) {
+        JsonCacheCodec json = new JsonCacheCodec();
+        CacheCodecs codecs = new CacheCodecs();
+        ReflectionTestUtils.setField(codecs, "codecName", writer);
+        ReflectionTestUtils.setField(codecs, "compressThreshold", compressThreshold);
+        ReflectionTestUtils.setField(codecs, "codecs", Arrays.asList(json, new BinaryCacheCodec()));
+        ReflectionTestUtils.setField(codecs, "jsonCacheCodec", json);
+        ReflectionTestUtils.invokeMethod(codecs, "init");
+        return codecs;
+    }
+
+    @Test
+    void smallValueIsNotCompressed() {
+        CacheCodecs codecs = codecs("binary", 1024);
+        byte[] bytes = codecs.encode(user());
+        assertEquals(BinaryCacheCodec.FORMAT, bytes[0]);
+        assertEquals(user(), codecs.decode(bytes, UserDTO.class));
+    }
+
+    @Test
+    void largeValueIsCompressed() {
+        CacheCodecs codecs = codecs("binary", 1024);
+        char[] content = new char[10_000];
+        Arrays.fill(content, 'a');
+        Blog blog = blog().setContent(new String(content));
+        byte[] bytes = codecs.encode(blog);
+        assertEquals(BinaryCacheCodec.FORMAT | COMPRESSED, bytes[0] & 0xFF);
+        assertTrue(bytes.length < 10_000);
+        assertEquals(blog, codecs.decode(bytes, Blog.class));
+    }
+
+    @Test
+    void compressionDisabled() {
+        CacheCodecs codecs = codecs("binary", 0);
+        char[] content = new char[10_000];
+        Arrays.fill(content, 'a');
+        byte[] bytes = codecs.encode(blog().setContent(new String(content)));
+        assertEquals(0, bytes[0] & COMPRESSED);
+    }
+
+    @Test
+    void compressedList() {
+        CacheCodecs codecs = codecs("binary", 64);
+        List<Shop> shops = Arrays.asList(shop(), shop().setId(2L), shop().setId(3L));
+        byte[] bytes = codecs.encode(shops);
+        assertEquals(COMPRESSED, bytes[0] & COMPRESSED);
+        assertEquals(shops, codecs.decodeList(bytes, Shop.class));
+    }
+
+    @Test
+    void logicalExpire() {
+        CacheCodecs codecs = codecs("binary", 64);
+        RedisData redisData = new RedisData();
+        redisData.setExpireTime(LocalDateTime.of(2022, 5, 1, 12, 0));
+        redisData.setData(shop());
+        RedisData decoded = codecs.decodeLogical(codecs.encode(redisData), Shop.class);
+        assertEquals(redisData.getExpireTime(), decoded.getExpireTime());
+        assertEquals(shop(), decoded.getData());
+    }
+
+    @Test
+    void expiryHeader() {
+        long expireAt = 1_700_000_000_123L;
+        for (int threshold : new int[]{0, 64}) {
+            CacheCodecs codecs = codecs("binary", threshold);
+            byte[] bytes = codecs.encode(shop(), expireAt, 37);
+            assertEquals(EXPIRY, bytes[0] & EXPIRY);
+            assertEquals(expireAt, CacheCodecs.expireAt(bytes));
+            assertEquals(37, CacheCodecs.rebuildMillis(bytes));
+            assertEquals(shop(), codecs.decode(bytes, Shop.class));
+        }
+    }
+
+    @Test
+    void noExpiryHeader() {
+        CacheCodecs codecs = codecs("binary", 1024);
+        byte[] bytes = codecs.encode(shop());
+        assertEquals(0, bytes[0] & EXPIRY);
+        assertEquals(0, CacheCodecs.expireAt(bytes));
+        assertEquals(0, CacheCodecs.rebuildMillis(bytes));
+        //改造前的json没有头
+        byte[] legacy = JSONUtil.toJsonStr(user()).getBytes(StandardCharsets.UTF_8);
+        assertEquals(0, CacheCodecs.expireAt(legacy));
+    }
+
+    @Test
+    void legacyJson() {
+        CacheCodecs codecs = codecs("binary", 1024);
+        //hutool把LocalDateTime写成毫秒时间戳，旧值只有毫秒精度
+        Shop shop = shop().setUpdateTime(LocalDateTime.of(2022, 1, 13, 17, 32, 19));
+        assertEquals(shop, codecs.decode(JSONUtil.toJsonStr(shop).getBytes(StandardCharsets.UTF_8), Shop.class));
+        List<UserDTO> users = Arrays.asList(user(), user());
+        assertEquals(users, codecs.decodeList(JSONUtil.toJsonStr(users).getBytes(StandardCharsets.UTF_8), UserDTO.class));
+        RedisData redisData = new RedisData();
+        redisData.setExpireTime(LocalDateTime.of(2022, 5, 1, 12, 0));
+        redisData.setData(shop);
+        RedisData decoded = codecs.decodeLogical(JSONUtil.toJsonStr(redisData).getBytes(StandardCharsets.UTF_8), Shop.class);
+        assertEquals(redisData.getExpireTime(), decoded.getExpireTime());
+        assertEquals(shop, decoded.getData());
+    }
+
+    @Test
+    void switchingWriterKeepsOldValuesReadable() {
+        CacheCodecs json = codecs("json", 1024);
+        CacheCodecs binary = codecs("binary", 1024);
+        byte[] fromJson = json.encode(user());
+        assertEquals(JsonCacheCodec.FORMAT, fromJson[0] & FORMAT_MASK);
+        assertEquals(user(), binary.decode(fromJson, UserDTO.class));
+        assertEquals(user(), json.decode(binary.encode(user()), UserDTO.class));
+    }
+
+    @Test
+    void unsupportedValueFallsBackToJson() {
+        CacheCodecs codecs = codecs("binary", 1024);
+        ShopType type = new ShopType().setId(1L).setName("美食").setIcon("/types/ms.png").setSort(1);
+        byte[] bytes = codecs.encode(Arrays.asList(type));
+        assertEquals(JsonCacheCodec.FORMAT, bytes[0] & FORMAT_MASK);
+        assertEquals(type.getName(), codecs.decodeList(bytes, ShopType.class).get(0).getName());
+    }
+
+    @Test
+    void unknownFormatIsRejected() {
+        CacheCodecs codecs = codecs("binary", 1024);
+        assertThrows(IllegalStateException.class, () -> codecs.decode(new byte[]{0x3F, 0}, Shop.class));
+    }
+
+    @Test
+    void unknownWriterIsRejected() {
+        assertThrows(IllegalStateException.class, () -> codecs("protobuf", 1024));
+    }
+}
@@ -0,0 +1,187 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.HotKeyDTO;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HotKeyDetectorTest {
+    /**
+     * 窗口5个桶每个1秒，计数n次对应qps = n / 5
+     */
+    private static final long BUCKET_MS = 1000;
+    private static final int BUCKETS = 5;
+
+    /**
+     * 不启动spring，手工注入配置；sample-rate为1时每次访问都记，结果是确定的
+     */
+    static HotKeyDetector detector(boolean enabled, int width, int topK, double thresholdQps) {
+        HotKeyDetector detector = new HotKeyDetector();
+        ReflectionTestUtils.setField(detector, "enabled", enabled);
+        ReflectionTestUtils.setField(detector, "sampleRate", 1);
+        ReflectionTestUtils.setField(detector, "bucketMillis", BUCKET_MS);
+        ReflectionTestUtils.setField(detector, "bucketCount", BUCKETS);
+        ReflectionTestUtils.setField(detector, "width", width);
+        ReflectionTestUtils.setField(detector, "depth", 4);
+        ReflectionTestUtils.setField(detector, "topK", topK);
+        ReflectionTestUtils.setField(detector, "thresholdQps", thresholdQps);
+        ReflectionTestUtils.invokeMethod(detector, "init");
+        return detector;
+    }
+
+    private static void record(HotKeyDetector detector, String key, int times) {
+        for (int i = 0; i < times; i++) {
+            detector.record(key);
+        }
+    }
+
+    private static Map<String, Double> qps(HotKeyDetector detector) {
+        return detector.hotKeys().stream().collect(Collectors.toMap(HotKeyDTO::getKey, HotKeyDTO::getQps));
+    }
+
+    @Test
+    void widthRoundsUpToPowerOfTwo() {
+        assertEquals(1024, ReflectionTestUtils.getField(detector(true, 1000, 10, 100), "width"));
+        assertEquals(2048, ReflectionTestUtils.getField(detector(true, 2048, 10, 100), "width"));
+    }
+
+    @Test
+    void hotKeyAboveThreshold() {
+        HotKeyDetector detector = detector(true, 2048, 10, 100);
+        record(detector, "cache:shop:1", 1000);
+        record(detector, "cache:shop:2", 100);
+        //轮换之前还没有热点集合
+        assertFalse(detector.isHot("cache:shop:1"));
+        detector.rotate();
+        assertTrue(detector.isHot("cache:shop:1"));
+        assertFalse(detector.isHot("cache:shop:2"));
+        assertFalse(detector.isHot("cache:shop:3"));
+
+        List<HotKeyDTO> keys = detector.hotKeys();
+        assertEquals(2, keys.size());
+        assertEquals("cache:shop:1", keys.get(0).getKey());
+        assertEquals(200.0, keys.get(0).getQps(), 1e-9);
+        assertTrue(keys.get(0).getHot());
+        assertEquals(20.0, keys.get(1).getQps(), 1e-9);
+        assertFalse(keys.get(1).getHot());
+    }
+
+    @Test
+    void keepsTopK() {
+        HotKeyDetector detector = detector(true, 2048, 3, 100);
+        for (int i = 1; i <= 6; i++) {
+            record(detector, "key" + i, i * 10);
+        }
+        assertEquals(new HashSet<>(Arrays.asList("key4", "key5", "key6")), qps(detector).keySet());
+        //后来居上的key挤掉堆顶
+        record(detector, "key1", 100);
+        assertEquals(new HashSet<>(Arrays.asList("key1", "key5", "key6")), qps(detector).keySet());
+        assertEquals("key1", detector.hotKeys().get(0).getKey());
+    }
+
+    @Test
+    void neverUnderestimates() {
+        //很窄的sketch，必然有哈希冲突
+        HotKeyDetector detector = detector(true, 16, 1000, 100);
+        Map<String, Integer> actual = new HashMap<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 200; i++) {
+            String key = "blog:liked:" + i;
+            int times = 1 + random.nextInt(20);
+            record(detector, key, times);
+            actual.put(key, times);
+        }
+        detector.rotate();
+        Map<String, Double> qps = qps(detector);
+        assertEquals(actual.keySet(), qps.keySet());
+        actual.forEach((key, times) -> assertTrue(qps.get(key) * BUCKETS >= times, key));
+    }
+
+    @Test
+    void exactWithoutCollisions() {
+        HotKeyDetector detector = detector(true, 1 << 16, 10, 100);
+        record(detector, "a", 50);
+        record(detector, "b", 25);
+        detector.rotate();
+        assertEquals(10.0, qps(detector).get("a"), 1e-9);
+        assertEquals(5.0, qps(detector).get("b"), 1e-9);
+    }
+
+    @Test
+    void slidingWindowForgets() {
+        HotKeyDetector detector = detector(true, 2048, 10, 100);
+        record(detector, "hot", 1000);
+        detector.rotate();
+        record(detector, "hot", 500);
+        //还在窗口里，两个桶加起来
+        detector.rotate();
+        assertEquals(300.0, qps(detector).get("hot"), 1e-9);
+        //第一个桶被清空
+        for (int i = 0; i < BUCKETS - 2; i++) {
+            detector.rotate();
+        }
+        assertEquals(100.0, qps(detector).get("hot"), 1e-9);
+        assertTrue(detector.isHot("hot"));
+        //第二个桶也被清空，key从堆里移除
+        detector.rotate();
+        assertFalse(detector.isHot("hot"));
+        assertTrue(detector.hotKeys().isEmpty());
+    }
+
+    @Test
+    void disabledRecordsNothing() {
+        HotKeyDetector detector = detector(false, 2048, 10, 1);
+        record(detector, "hot", 1000);
+        detector.rotate();
+        assertFalse(detector.isHot("hot"));
+        assertTrue(detector.hotKeys().isEmpty());
+    }
+
+    @Test
+    void sampledCountsAreScaledBack() {
+        HotKeyDetector detector = detector(true, 2048, 10, 100);
+        ReflectionTestUtils.setField(detector, "sampleRate", 8);
+        record(detector, "hot", 80_000);
+        detector.rotate();
+        //抽样1/8，还原后应该接近80000/5=16000
+        assertEquals(16000.0, qps(detector).get("hot"), 16000.0 * 0.1);
+    }
+
+    @Test
+    void concurrentRecords() throws Exception {
+        HotKeyDetector detector = detector(true, 2048, 10, 100);
+        int threads = 4;
+        int times = 10_000;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        for (int t = 0; t < threads; t++) {
+            int id = t;
+            pool.execute(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < times; i++) {
+                    detector.record("hot");
+                    detector.record("cold" + id + ":" + (i % 100));
+                }
+            });
+        }
+        start.countDown();
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(30, TimeUnit.SECONDS));
+        detector.rotate();
+        assertEquals(threads * times / (double) BUCKETS, qps(detector).get("hot"), 1e-9);
+        assertEquals("hot", detector.hotKeys().get(0).getKey());
+        assertTrue(detector.hotKeys().size() <= 10);
+    }
+}
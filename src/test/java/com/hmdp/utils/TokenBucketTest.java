@@ -0,0 +1,109 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TokenBucketTest {
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    void burstThenRejected() {
+        //每秒10个，容量5：同一时刻只能拿到5个
+        TokenBucket bucket = new TokenBucket(10, 5);
+        long now = 1_000 * SECOND;
+        for (int i = 0; i < 5; i++) {
+            assertTrue(bucket.tryAcquire(now), "第" + (i + 1) + "个令牌");
+        }
+        assertFalse(bucket.tryAcquire(now));
+    }
+
+    @Test
+    void refillsAtRate() {
+        TokenBucket bucket = new TokenBucket(10, 1);
+        long now = 1_000 * SECOND;
+        assertTrue(bucket.tryAcquire(now));
+        //间隔100ms，差1纳秒都不够
+        assertFalse(bucket.tryAcquire(now + SECOND / 10 - 1));
+        assertTrue(bucket.tryAcquire(now + SECOND / 10));
+        assertFalse(bucket.tryAcquire(now + SECOND / 10));
+    }
+
+    @Test
+    void idleTimeDoesNotExceedBurst() {
+        TokenBucket bucket = new TokenBucket(10, 3);
+        long now = 1_000 * SECOND;
+        assertTrue(bucket.tryAcquire(now));
+        //空闲很久，桶也只攒满容量
+        long later = now + 60 * SECOND;
+        for (int i = 0; i < 3; i++) {
+            assertTrue(bucket.tryAcquire(later));
+        }
+        assertFalse(bucket.tryAcquire(later));
+    }
+
+    @Test
+    void nanoTimeMayBeNegative() {
+        //System.nanoTime可以是负数，不能和初始值混淆
+        TokenBucket bucket = new TokenBucket(1, 2);
+        long now = -5 * SECOND;
+        assertTrue(bucket.tryAcquire(now));
+        assertTrue(bucket.tryAcquire(now));
+        assertFalse(bucket.tryAcquire(now));
+        assertTrue(bucket.tryAcquire(now + SECOND));
+    }
+
+    @Test
+    void idleState() {
+        TokenBucket bucket = new TokenBucket(1, 1);
+        assertTrue(bucket.isIdle());
+        assertTrue(bucket.tryAcquire());
+        //下一个令牌1秒后才生成，桶不是满的
+        assertFalse(bucket.isIdle());
+    }
+
+    @Test
+    void fullAfterRefillNanos() {
+        //每秒10个，容量5：取空之后500ms又是满的
+        TokenBucket bucket = new TokenBucket(10, 5);
+        assertEquals(SECOND / 2, bucket.refillNanos());
+        long now = 1_000 * SECOND;
+        for (int i = 0; i < 5; i++) {
+            assertTrue(bucket.tryAcquire(now));
+        }
+        long later = now + bucket.refillNanos();
+        for (int i = 0; i < 5; i++) {
+            assertTrue(bucket.tryAcquire(later));
+        }
+        assertFalse(bucket.tryAcquire(later));
+    }
+
+    @Test
+    void concurrentAcquireNeverOverIssues() throws InterruptedException {
+        //速率很低，测试期间基本不会补充令牌，并发取到的总数不能超过容量
+        TokenBucket bucket = new TokenBucket(0.001, 100);
+        int threads = 8;
+        AtomicInteger acquired = new AtomicInteger();
+        CountDownLatch latch = new CountDownLatch(threads);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        for (int t = 0; t < threads; t++) {
+            pool.execute(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    if (bucket.tryAcquire()) {
+                        acquired.incrementAndGet();
+                    }
+                }
+                latch.countDown();
+            });
+        }
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        pool.shutdown();
+        assertEquals(100, acquired.get());
+    }
+}